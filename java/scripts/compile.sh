@@ -3,9 +3,18 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/PizzaStore.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
 
+
+#run a command script instead of the menus ('-' reads standard input)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER --batch <script>
+
+#run without Postgres on the data files, kept in a snapshot between runs
+#java -cp $DIR/../classes PizzaStore --memory $DIR/../../data --snapshot <file>
+
+#spread orders over several databases by storeID, see ShardedStorage for the map format
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER --shards <shard map>
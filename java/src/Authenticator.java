@@ -0,0 +1,262 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * This class checks passwords.  Passwords are stored as salted PBKDF2 hashes
+ * in the form pbkdf2$<iterations>$<salt>$<hash>, so the work factor can be
+ * raised without invalidating stored hashes.  Databases created before
+ * passwords were hashed are migrated once with hashStoredPasswords
+ * (PizzaStore --hash-passwords); until then a password still stored in
+ * plain text is accepted once and replaced by its hash.
+ *
+ * Hashing is slow on purpose, so successful verifications are remembered
+ * for a while: per login, the SHA-256 digest of the password that was
+ * accepted and when that stops being trusted.  A repeat login with the same
+ * password is checked against the digest without hashing and without
+ * reading Users.  Entries are evicted least recently used beyond the cache
+ * size, and dropped when the password or the login changes, here or in
+ * another process (through the change feed).  While the change feed is not
+ * running the changes of other processes would be missed, so every login
+ * is checked against Users.
+ *
+ */
+public class Authenticator {
+
+	private static final String SCHEME = "pbkdf2";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 256;
+
+	/**
+	 * One remembered verification
+	 */
+	private static class Verified {
+		final byte[] digest;
+		final long expiresAt;
+
+		Verified(byte[] digest, long expiresAt) {
+			this.digest = digest;
+			this.expiresAt = expiresAt;
+		}
+	}//end Verified
+
+	private final int iterations;
+	private final int cacheSize;
+	private final long timeToLive;
+	private final BooleanSupplier cacheTrusted;
+	private final SecureRandom random = new SecureRandom();
+
+	// access ordered, the first entry is the least recently used login
+	private final LinkedHashMap<String, Verified> verified;
+
+	// hash of a random password, checked for unknown logins so they take as
+	// long as known ones, made on first use
+	private volatile String dummyHash = null;
+
+	private final AtomicLong logins = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong hashes = new AtomicLong();
+	private final AtomicLong upgrades = new AtomicLong();
+	private final AtomicLong elapsedNanos = new AtomicLong();
+
+	/**
+	 * Creates an authenticator.  The work factor, the number of cached
+	 * verifications and how long they are trusted can be tuned with
+	 * -Dpizzastore.auth.iterations=<n>, -Dpizzastore.auth.cache=<logins> and
+	 * -Dpizzastore.auth.ttl=<seconds>.
+	 *
+	 * @param cacheTrusted answers whether every password change reaches
+	 *        evict, the cache is neither read nor filled while it is false
+	 */
+	public Authenticator(BooleanSupplier cacheTrusted) {
+		this.cacheTrusted = cacheTrusted;
+		this.iterations = Math.max(1, Integer.getInteger("pizzastore.auth.iterations", 100000));
+		this.cacheSize = Math.max(0, Integer.getInteger("pizzastore.auth.cache", 10000));
+		this.timeToLive = Long.getLong("pizzastore.auth.ttl", 300) * 1000;
+		this.verified = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}//end Authenticator
+
+	/**
+	 * Hashes a password with a new random salt
+	 *
+	 * @param password the password
+	 * @return the value to store in Users.password
+	 */
+	public String hash(String password) {
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		Base64.Encoder base64 = Base64.getEncoder();
+		return String.format("%s$%d$%s$%s", SCHEME, iterations,
+				base64.encodeToString(salt), base64.encodeToString(pbkdf2(password, salt, iterations)));
+	}//end hash
+
+	/**
+	 * Checks the password of a login
+	 *
+	 * @param storage where the stored password is read and upgraded
+	 * @param login the login
+	 * @param password the password given
+	 * @return true when the password is the one of the login
+	 * @throws java.sql.SQLException when the stored password could not be read
+	 */
+	public boolean login(Storage storage, String login, String password) throws SQLException {
+		long start = System.nanoTime();
+		logins.incrementAndGet();
+		try {
+			boolean caching = cacheTrusted.getAsBoolean();
+			byte[] digest = digest(login, password);
+			if (caching && isVerified(login, digest)) {
+				cacheHits.incrementAndGet();
+				return true;
+			}
+
+			String stored = storage.findPassword(login);
+			if (stored == null) {
+				// unknown logins cost a hash too
+				if (dummyHash == null) dummyHash = hash(Long.toString(random.nextLong()));
+				verify(password, dummyHash);
+				failures.incrementAndGet();
+				return false;
+			}
+			if (!verify(password, stored)) {
+				failures.incrementAndGet();
+				return false;
+			}
+			if (!stored.startsWith(SCHEME + "$")) {
+				storage.updateUser(login, "password", hash(password));
+				upgrades.incrementAndGet();
+			}
+			if (caching) remember(login, digest);
+			return true;
+		} finally {
+			elapsedNanos.addAndGet(System.nanoTime() - start);
+		}//end try
+	}//end login
+
+	/**
+	 * Replaces every password still stored in plain text by its hash.  The
+	 * hashes are computed in parallel, the rows are updated one by one, so
+	 * an interrupted migration is finished by running it again.
+	 *
+	 * @param storage where the passwords are read and written
+	 * @return the number of passwords hashed
+	 * @throws java.sql.SQLException when a password could not be read or written
+	 */
+	public int hashStoredPasswords(Storage storage) throws SQLException {
+		List<List<String>> plain = storage.plainPasswords();
+		List<String> hashed = plain.parallelStream().map(user -> hash(user.get(1))).collect(Collectors.toList());
+		for (int i = 0; i < plain.size(); i++) {
+			String login = plain.get(i).get(0);
+			storage.updateUser(login, "password", hashed.get(i));
+			evict(login);
+		}
+		upgrades.addAndGet(plain.size());
+		return plain.size();
+	}//end hashStoredPasswords
+
+	/**
+	 * Checks a password against a stored value, hashed or plain text
+	 *
+	 * @param password the password given
+	 * @param stored the value of Users.password
+	 * @return true when they match
+	 */
+	public boolean verify(String password, String stored) {
+		String[] parts = stored.split("\\$");
+		if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+			return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+		}
+		Base64.Decoder base64 = Base64.getDecoder();
+		byte[] expected = base64.decode(parts[3]);
+		return MessageDigest.isEqual(expected, pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+	}//end verify
+
+	/*
+	 * Forgets the verification of a login, its password or the login itself
+	 * changed
+	 **/
+	public synchronized void evict(String login) {
+		verified.remove(login);
+	}
+
+	/*
+	 * Forgets every verification, changes may have been missed
+	 **/
+	public synchronized void clear() {
+		verified.clear();
+	}
+
+	private synchronized boolean isVerified(String login, byte[] digest) {
+		Verified entry = verified.get(login);
+		if (entry == null) return false;
+		if (entry.expiresAt <= System.currentTimeMillis()) {
+			verified.remove(login);
+			return false;
+		}
+		return MessageDigest.isEqual(entry.digest, digest);
+	}//end isVerified
+
+	private synchronized void remember(String login, byte[] digest) {
+		if (cacheSize > 0) verified.put(login, new Verified(digest, System.currentTimeMillis() + timeToLive));
+	}
+
+	private byte[] pbkdf2(String password, byte[] salt, int rounds) {
+		hashes.incrementAndGet();
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, rounds, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		} finally {
+			spec.clearPassword();
+		}//end try
+	}//end pbkdf2
+
+	// the cache never holds the password itself
+	private static byte[] digest(String login, String password) {
+		try {
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			sha256.update(login.getBytes(StandardCharsets.UTF_8));
+			sha256.update((byte) 0);
+			return sha256.digest(password.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}//end try
+	}//end digest
+
+	/*
+	 * Returns true once a login was checked
+	 **/
+	public boolean isEmpty() {
+		return logins.get() == 0;
+	}
+
+	/*
+	 * Prints login counts, cache hits and throughput to standard out
+	 **/
+	public void print() {
+		long count = logins.get();
+		double seconds = elapsedNanos.get() / 1e9;
+		System.out.println("LOGINS\t\tFAILED\tCACHE HITS\tHASHES\tUPGRADED\tMEAN MS\tLOGINS/S");
+		System.out.printf("%d\t\t%d\t%d\t\t%d\t%d\t\t%.2f\t%.1f\n", count, failures.get(), cacheHits.get(),
+				hashes.get(), upgrades.get(), count == 0 ? 0.0 : seconds * 1000 / count, seconds == 0 ? 0.0 : count / seconds);
+	}//end print
+
+}//end Authenticator
@@ -0,0 +1,298 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs admin commands from a script instead of the menus.  Every
+ * line of the script is one command, words are separated by blanks and may
+ * be double quoted, blank lines and lines starting with '#' are skipped.
+ *
+ *   create-user <login> <password> <phone>
+ *   login <login> <password>
+ *   place-order <login> <storeID> <item> <quantity> [<item> <quantity> ...]
+ *   update-status <orderID> <incomplete|in progress|complete>
+ *   edit-item <itemName> <ingredients|typeOfItem|price|description> <value>
+ *   change-role <login> <role>
+ *   forecast <storeID>
+ *
+ * Commands are committed in transactions of batchSize commands.  Each
+ * command runs behind a savepoint, so a failing command is rolled back alone
+ * and the rest of its transaction still commits.  One result line per
+ * command (line number, OK or ERROR, detail) is printed once its transaction
+ * committed, followed by a summary.  The caches and dispatch queues are
+ * updated after the commit too (see PizzaStore.afterCommit), nothing of a
+ * rolled back command or transaction reaches them.
+ *
+ * A script runs against a single database.  With a shard map the writes to
+ * the other shards would commit outside the batch transaction, so PizzaStore
+ * refuses --batch together with --shards.
+ *
+ */
+public class BatchRunner {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private final PizzaStore esql;
+	private final PrintStream out;
+	private final int batchSize;
+
+	// results of the commands of the open transaction, printed on commit
+	private final List<String> pending = new ArrayList<String>();
+	private int succeeded = 0;
+	private int failed = 0;
+
+	/**
+	 * Creates a batch runner.  The transaction size can be tuned with
+	 * -Dpizzastore.batch.size=<commands>.
+	 *
+	 * @param esql the database the commands run against
+	 * @param out where the results are written
+	 */
+	public BatchRunner(PizzaStore esql, PrintStream out) {
+		this.esql = esql;
+		this.out = out;
+		this.batchSize = Math.max(1, Integer.getInteger("pizzastore.batch.size", DEFAULT_BATCH_SIZE));
+	}//end BatchRunner
+
+	/**
+	 * Runs every command of a script
+	 *
+	 * @param script the command script
+	 * @return the number of commands that failed
+	 * @throws java.io.IOException when the script could not be read
+	 * @throws java.sql.SQLException when a transaction could not be started
+	 */
+	public int run(BufferedReader script) throws IOException, SQLException {
+		long start = System.currentTimeMillis();
+		int lineNumber = 0;
+		int inTransaction = 0;
+		String line;
+
+		// without a database every command applies on its own
+		boolean transactions = esql.hasConnection();
+		if (transactions) esql.setAutoCommit(false);
+		try {
+			while ((line = script.readLine()) != null) {
+				lineNumber++;
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+
+				runCommand(lineNumber, tokenize(trimmed), transactions, inTransaction > 0);
+				if (++inTransaction == batchSize) {
+					commit();
+					inTransaction = 0;
+				}
+			}//end while
+			commit();
+		} finally {
+			if (transactions) esql.setAutoCommit(true);
+		}//end try
+
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		out.println(String.format("SUMMARY\t%d commands\t%d ok\t%d failed\t%d ms\t%.1f commands/s",
+				succeeded + failed, succeeded, failed, elapsed, (succeeded + failed) * 1000.0 / elapsed));
+		return failed;
+	}//end run
+
+	/*
+	 * Runs one command behind a savepoint.  The savepoint of the previous
+	 * command is released in the same round trip that sets the new one.
+	 **/
+	private void runCommand(int lineNumber, List<String> words, boolean savepoint, boolean releasePrevious) {
+		String command = words.isEmpty() ? "" : words.get(0);
+		String operation = operationOf(command);
+		esql.beginOperation(operation);
+		int actions = esql.afterCommitCount();
+		try {
+			if (savepoint) {
+				esql.executeUpdate(releasePrevious
+						? "RELEASE SAVEPOINT batch_command; SAVEPOINT batch_command"
+						: "SAVEPOINT batch_command");
+			}
+			String detail = execute(command, words);
+			pending.add(String.format("%d\tOK\t%s", lineNumber, detail));
+			succeeded++;
+		} catch (Exception e) {
+			if (savepoint) {
+				try {
+					esql.rollbackToSavepoint("batch_command");
+				} catch (SQLException rollback) {
+					// the commit of this transaction reports it.
+				}//end try
+				esql.dropAfterCommit(actions);
+				// a pricing engine compiled from the rolled back rows
+				esql.invalidatePricing();
+			}//end if
+			pending.add(String.format("%d\tERROR\t%s", lineNumber, e.getMessage()));
+			failed++;
+		} finally {
+			esql.endOperation(operation);
+		}//end try
+	}//end runCommand
+
+	private String execute(String command, List<String> words) throws Exception {
+		if (command.equals("create-user")) {
+			expect(words, 4, "create-user <login> <password> <phone>");
+			esql.getStorage().createUser(words.get(1), esql.getAuthenticator().hash(words.get(2)), "Customers", words.get(3));
+			return "created user " + words.get(1);
+		}
+		if (command.equals("login")) {
+			expect(words, 3, "login <login> <password>");
+			if (!esql.getAuthenticator().login(esql.getStorage(), words.get(1), words.get(2))) {
+				throw new IllegalArgumentException("Wrong login or password for " + words.get(1));
+			}
+			return "logged in " + words.get(1);
+		}
+		if (command.equals("place-order")) {
+			if (words.size() < 5 || words.size() % 2 == 0) {
+				throw new IllegalArgumentException("Usage: place-order <login> <storeID> <item> <quantity> [<item> <quantity> ...]");
+			}
+			return placeOrder(words.get(1), Integer.parseInt(words.get(2)), words.subList(3, words.size()));
+		}
+		if (command.equals("update-status")) {
+			expect(words, 3, "update-status <orderID> <status>");
+			int orderID = Integer.parseInt(words.get(1));
+			String status = words.get(2).toLowerCase();
+			if (!PizzaStore.isOrderStatus(status)) {
+				throw new IllegalArgumentException("Invalid status: " + status);
+			}
+			requireOne(PizzaStore.changeOrderStatus(esql, orderID, -1, status), "order " + orderID);
+			return String.format("order %d is %s", orderID, status);
+		}
+		if (command.equals("edit-item")) {
+			expect(words, 4, "edit-item <itemName> <attribute> <value>");
+			String attribute = words.get(2);
+			String value = words.get(3);
+			if (attribute.equals("price")) {
+				if (!value.matches("^\\d+(\\.\\d{1,2})?$")) throw new IllegalArgumentException("Invalid price: " + value);
+			} else if (!attribute.equals("ingredients") && !attribute.equals("typeOfItem") && !attribute.equals("description")) {
+				throw new IllegalArgumentException("Invalid attribute: " + attribute);
+			}
+			requireOne(esql.getStorage().updateItem(words.get(1), attribute, value), "item " + words.get(1));
+			// this transaction prices with the new value at once, the other
+			// threads once it is committed
+			esql.invalidatePricing();
+			esql.afterCommit(() -> esql.invalidatePricing());
+			return String.format("%s of %s set", attribute, words.get(1));
+		}
+		if (command.equals("change-role")) {
+			expect(words, 3, "change-role <login> <role>");
+			requireOne(esql.getStorage().updateUser(words.get(1), "role", words.get(2)), "user " + words.get(1));
+			return String.format("%s is %s", words.get(1), words.get(2));
+		}
+		if (command.equals("forecast")) {
+			expect(words, 2, "forecast <storeID>");
+			int storeID = Integer.parseInt(words.get(1));
+			long rows = esql.getForecaster().train(esql.getStorage());
+			Map<String, double[]> forecast = esql.getForecaster().forecast(storeID, LocalDate.now().plusDays(1));
+			double total = 0;
+			for (double[] hours : forecast.values()) {
+				for (double quantity : hours) total += quantity;
+			}
+			return String.format("store %d expects %.1f items of %d kinds tomorrow, %d new hourly rows fitted", storeID, total, forecast.size(), rows);
+		}
+		throw new IllegalArgumentException("Unknown command: " + command);
+	}//end execute
+
+	/*
+	 * Prices and writes one order the same way the interactive placeOrder does
+	 **/
+	private String placeOrder(String login, int storeID, List<String> lines) throws SQLException {
+		PricingEngine pricing = esql.getPricingEngine();
+		PricingEngine.Cart cart = pricing.newCart();
+		for (int i = 0; i < lines.size(); i += 2) {
+			int item = pricing.indexOf(lines.get(i));
+			if (item < 0) throw new IllegalArgumentException("Item is not on the menu: " + lines.get(i));
+			int quantity = Integer.parseInt(lines.get(i + 1));
+			if (quantity <= 0) throw new IllegalArgumentException("Invalid quantity: " + quantity);
+			cart.add(item, quantity);
+		}
+		long price = pricing.price(cart, storeID, LocalTime.now().getHour());
+		int orderID = PizzaStore.submitOrder(esql, login, storeID, pricing, cart, price);
+		return String.format("order %d placed, total $%s", orderID, PricingEngine.formatCents(price));
+	}//end placeOrder
+
+	/*
+	 * Commits the open transaction and prints the results of its commands.
+	 * If the commit fails none of them took effect.
+	 **/
+	private void commit() {
+		if (pending.isEmpty()) return;
+		if (!esql.hasConnection()) {
+			for (String result : pending) out.println(result);
+			pending.clear();
+			return;
+		}//end if
+		try {
+			esql.commit();
+			for (String result : pending) out.println(result);
+		} catch (SQLException e) {
+			for (String result : pending) {
+				if (result.contains("\tOK\t")) {
+					succeeded--;
+					failed++;
+				}
+				out.println(result.replaceFirst("\tOK\t.*", "\tERROR\tcommit failed: " + e.getMessage()));
+			}
+			try {
+				esql.rollback();
+			} catch (SQLException rollback) {
+				// ignored.
+			}//end try
+			esql.invalidatePricing();
+		}//end try
+		pending.clear();
+	}//end commit
+
+	private static String operationOf(String command) {
+		if (command.equals("create-user")) return "CreateUser";
+		if (command.equals("login")) return "LogIn";
+		if (command.equals("place-order")) return "placeOrder";
+		if (command.equals("update-status")) return "updateOrderStatus";
+		if (command.equals("edit-item")) return "updateMenu";
+		if (command.equals("change-role")) return "updateUser";
+		if (command.equals("forecast")) return "viewDemandForecast";
+		return null;
+	}
+
+	private static void expect(List<String> words, int count, String usage) {
+		if (words.size() != count) throw new IllegalArgumentException("Usage: " + usage);
+	}
+
+	private static void requireOne(int rows, String what) {
+		if (rows != 1) throw new IllegalArgumentException("No such " + what);
+	}
+
+	/*
+	 * Splits a command line into words, "double quoted" words may contain blanks
+	 **/
+	static List<String> tokenize(String line) {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		boolean quoted = false;
+		boolean inWord = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+				inWord = true;
+			} else if (!quoted && Character.isWhitespace(c)) {
+				if (inWord) words.add(word.toString());
+				word.setLength(0);
+				inWord = false;
+			} else {
+				word.append(c);
+				inWord = true;
+			}
+		}//end for
+		if (inWord) words.add(word.toString());
+		return words;
+	}//end tokenize
+
+}//end BatchRunner
@@ -0,0 +1,357 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class delivers changes made to Items, Users and Store, and new orders
+ * and status changes of FoodOrder, by any PizzaStore process to handlers
+ * registered in this process.
+ *
+ * The triggers in create_triggers.sql append one row per changed key to
+ * ChangeEvent and NOTIFY the pizzastore_changes channel when their
+ * transaction commits.  A listener thread on its own connection wakes up on
+ * the notification and reads the events it has not seen.  The bundled
+ * driver only collects notifications while a query runs, so the listener
+ * issues a trivial statement every poll interval and reads ChangeEvent only
+ * after a notification arrived.
+ *
+ * seq is taken when an event is inserted, not when its transaction commits,
+ * so events can become visible out of seq order.  A seq skipped by the
+ * highest one seen is a hole: its transaction may still commit, and the
+ * listener keeps asking for it until the hole is older than the longest
+ * allowed transaction, see maxTransactionMillis.  A late event is
+ * dispatched when it shows up.  Holes that never fill were rolled back.
+ * Handlers are asked to resync when events were surely missed: when there
+ * are more holes than can be tracked, and after the listener lost its
+ * connection and opened a new one.
+ *
+ */
+public class ChangeFeed implements Runnable {
+
+	public static final String CHANNEL = "pizzastore_changes";
+
+	public static final char INSERT = 'I';
+	public static final char UPDATE = 'U';
+	public static final char DELETE = 'D';
+
+	// holes tracked at most, more means events were missed
+	private static final int MAX_HOLES = 10000;
+
+	/**
+	 * One changed row.  key is the primary key of the row (login, itemName,
+	 * storeID or orderID), value the new value of the column the trigger
+	 * publishes (orderStatus for FoodOrder), null for the other tables.
+	 */
+	public static class Event {
+		public final long seq;
+		public final String table;
+		public final char op;
+		public final String key;
+		public final String value;
+
+		public Event(long seq, String table, char op, String key, String value) {
+			this.seq = seq;
+			this.table = table;
+			this.op = op;
+			this.key = key;
+			this.value = value;
+		}
+	}//end Event
+
+	/**
+	 * Receives the changes of one table
+	 */
+	public interface Handler {
+		void onChange(Event event);
+
+		// called when events may have been missed, reload everything
+		void resync();
+	}//end Handler
+
+	private final PizzaStore esql;
+	private final Map<String, List<Handler>> handlers = new ConcurrentHashMap<String, List<Handler>>();
+	private final long pollInterval;
+	private final long retryDelay;
+	private final long maxTransaction;
+	private Connection connection;
+	private Method getNotifications;
+	private Thread thread;
+	private volatile boolean running = false;
+	// false while the listener has no connection, changes may be missed
+	private volatile boolean connected = false;
+	// highest seq seen, and the seqs below it not seen yet with the time
+	// they were found missing
+	private long lastSeq = 0;
+	private final TreeMap<Long, Long> holes = new TreeMap<Long, Long>();
+	private long lastPrune = 0;
+
+	/**
+	 * Creates a change feed.  The poll interval and the delay between
+	 * attempts to reconnect a lost listener can be tuned with
+	 * -Dpizzastore.changes.poll=<ms> and -Dpizzastore.changes.retry=<ms>.
+	 *
+	 * @param esql the database the feed listens to
+	 */
+	public ChangeFeed(PizzaStore esql) {
+		this.esql = esql;
+		this.pollInterval = Math.max(10, Long.getLong("pizzastore.changes.poll", 500));
+		this.retryDelay = Math.max(100, Long.getLong("pizzastore.changes.retry", 5000));
+		this.maxTransaction = maxTransactionMillis();
+	}//end ChangeFeed
+
+	/**
+	 * Returns how long a transaction writing orders or published tables may
+	 * stay open, -Dpizzastore.transaction.max=<seconds> (default 600).  A
+	 * change committed later than that after it was made may be missed by
+	 * the change feed and the demand forecast.
+	 *
+	 * @return the longest allowed transaction in milliseconds
+	 */
+	public static long maxTransactionMillis() {
+		return Math.max(1, Long.getLong("pizzastore.transaction.max", 600)) * 1000;
+	}
+
+	/*
+	 * Registers a handler for the changes of a table (Items, Users, Store or
+	 * FoodOrder)
+	 **/
+	public void register(String table, Handler handler) {
+		handlers.computeIfAbsent(table.toLowerCase(), k -> new CopyOnWriteArrayList<Handler>()).add(handler);
+	}
+
+	/**
+	 * Opens the listener connection and starts the listener thread
+	 *
+	 * @throws java.sql.SQLException when the channel could not be listened to
+	 */
+	public synchronized void start() throws SQLException {
+		if (running) return;
+		connect();
+		running = true;
+		thread = new Thread(this, "change-feed");
+		thread.setDaemon(true);
+		thread.start();
+	}//end start
+
+	/*
+	 * Opens the listener connection and listens to the channel before the
+	 * starting seq is read, so no event committed after it goes unnoticed
+	 **/
+	private void connect() throws SQLException {
+		Connection opened = esql.openConnection();
+		try {
+			getNotifications = opened.getClass().getMethod("getNotifications");
+			Statement stmt = opened.createStatement();
+			stmt.executeUpdate("LISTEN " + CHANNEL);
+			startAt(stmt);
+			stmt.close();
+		} catch (NoSuchMethodException e) {
+			opened.close();
+			throw new SQLException("The JDBC driver does not support notifications");
+		} catch (SQLException e) {
+			opened.close();
+			throw e;
+		}//end try
+		connection = opened;
+		connected = true;
+	}//end connect
+
+	/*
+	 * Starts after the last seq handed out.  The seqs taken by transactions
+	 * that may still be open are holes, their events are dispatched if they
+	 * commit.
+	 **/
+	private void startAt(Statement stmt) throws SQLException {
+		holes.clear();
+		ResultSet rs = stmt.executeQuery(String.format(
+				"SELECT (SELECT CASE WHEN is_called THEN last_value ELSE last_value - 1 END FROM changeevent_seq_seq), " +
+				"(SELECT COALESCE(MAX(seq), 0) FROM ChangeEvent WHERE changedAt <= now() - interval '%d milliseconds')",
+				maxTransaction));
+		rs.next();
+		lastSeq = rs.getLong(1);
+		long settled = Math.max(rs.getLong(2), lastSeq - MAX_HOLES);
+		rs.close();
+
+		Set<Long> visible = new HashSet<Long>();
+		rs = stmt.executeQuery(String.format("SELECT seq FROM ChangeEvent WHERE seq > %d AND seq <= %d", settled, lastSeq));
+		while (rs.next()) visible.add(rs.getLong(1));
+		rs.close();
+		long now = System.currentTimeMillis();
+		for (long seq = settled + 1; seq <= lastSeq; seq++) {
+			if (!visible.contains(seq)) holes.put(seq, now);
+		}
+	}//end startAt
+
+	/*
+	 * Stops the listener thread and closes its connection
+	 **/
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join(pollInterval * 2);
+		} catch (InterruptedException e) {
+			// ignored.
+		}//end try
+		disconnect();
+	}//end stop
+
+	/*
+	 * Listens until stopped.  A lost connection is opened again every
+	 * retryDelay, and the handlers are resynced once it is back since the
+	 * changes made in between were missed.
+	 **/
+	public void run() {
+		while (running) {
+			try {
+				if (connection == null) {
+					connect();
+					System.err.println("Change feed reconnected");
+					resyncAll();
+				}//end if
+				listen();
+			} catch (InterruptedException e) {
+				// stopped.
+			} catch (Exception e) {
+				if (!running) break;
+				System.err.println("Change feed lost its connection, retrying: " + e.getMessage());
+				disconnect();
+				try {
+					Thread.sleep(retryDelay);
+				} catch (InterruptedException stopped) {
+					// stopped.
+				}//end try
+			}//end try
+		}//end while
+		connected = false;
+	}//end run
+
+	private void listen() throws Exception {
+		Statement stmt = connection.createStatement();
+		try {
+			while (running) {
+				Thread.sleep(pollInterval);
+				// any statement lets the driver collect pending notifications
+				stmt.executeQuery("SELECT 1").close();
+				Object[] notifications = (Object[]) getNotifications.invoke(connection);
+				if (notifications != null && notifications.length > 0) fetch(stmt);
+				expireHoles();
+				prune(stmt);
+			}//end while
+		} finally {
+			stmt.close();
+		}//end try
+	}//end listen
+
+	private synchronized void disconnect() {
+		connected = false;
+		if (connection == null) return;
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// ignored.
+		}//end try
+		connection = null;
+	}//end disconnect
+
+	/*
+	 * Reads and dispatches the events after lastSeq and those filling a
+	 * hole, in seq order
+	 **/
+	private void fetch(Statement stmt) throws SQLException {
+		StringBuilder missing = new StringBuilder("{");
+		for (Long seq : holes.keySet()) {
+			if (missing.length() > 1) missing.append(',');
+			missing.append(seq);
+		}
+		missing.append('}');
+		ResultSet rs = stmt.executeQuery(String.format(
+				"SELECT seq, tableName, op, rowKey, rowValue FROM ChangeEvent WHERE seq > %d OR seq = ANY('%s'::bigint[]) ORDER BY seq",
+				lastSeq, missing));
+		while (rs.next()) {
+			Event event = new Event(rs.getLong(1), rs.getString(2).trim().toLowerCase(), rs.getString(3).charAt(0), rs.getString(4), rs.getString(5));
+			if (event.seq > lastSeq) {
+				if (event.seq - lastSeq - 1 + holes.size() > MAX_HOLES) {
+					holes.clear();
+					resyncAll();
+				} else {
+					long now = System.currentTimeMillis();
+					for (long seq = lastSeq + 1; seq < event.seq; seq++) holes.put(seq, now);
+				}//end if
+				lastSeq = event.seq;
+			} else if (holes.remove(event.seq) == null) {
+				continue;
+			}//end if
+			dispatch(event);
+		}//end while
+		rs.close();
+	}//end fetch
+
+	/*
+	 * Forgets the holes older than the longest allowed transaction, their
+	 * changes were rolled back
+	 **/
+	private void expireHoles() {
+		long oldest = System.currentTimeMillis() - maxTransaction;
+		Iterator<Long> foundAt = holes.values().iterator();
+		while (foundAt.hasNext()) {
+			if (foundAt.next() <= oldest) foundAt.remove();
+		}
+	}//end expireHoles
+
+	/*
+	 * Returns true while the listener thread delivers changes, false while
+	 * it is stopped or has lost its connection
+	 **/
+	public boolean isRunning() {
+		return running && connected;
+	}
+
+	private void dispatch(Event event) {
+		List<Handler> tableHandlers = handlers.get(event.table);
+		if (tableHandlers == null) return;
+		for (Handler handler : tableHandlers) {
+			try {
+				handler.onChange(event);
+			} catch (RuntimeException e) {
+				System.err.println("Change handler failed: " + e.getMessage());
+			}//end try
+		}//end for
+	}//end dispatch
+
+	private void resyncAll() {
+		for (List<Handler> tableHandlers : handlers.values()) {
+			for (Handler handler : tableHandlers) {
+				try {
+					handler.resync();
+				} catch (RuntimeException e) {
+					System.err.println("Change handler failed: " + e.getMessage());
+				}//end try
+			}//end for
+		}//end for
+	}//end resyncAll
+
+	/*
+	 * Deletes events older than a day, once an hour.  Every instance prunes,
+	 * a listener starts after the last event so it never waits for pruned
+	 * ones.
+	 **/
+	private void prune(Statement stmt) throws SQLException {
+		long now = System.currentTimeMillis();
+		if (now - lastPrune < 3600000) return;
+		lastPrune = now;
+		stmt.executeUpdate("DELETE FROM ChangeEvent WHERE changedAt < now() - interval '1 day'");
+	}//end prune
+
+}//end ChangeFeed
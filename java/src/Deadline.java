@@ -0,0 +1,130 @@
+import java.sql.SQLException;
+
+/**
+ * This class defines the time budget of one logical operation (placeOrder,
+ * viewOrderInfo, ...).  Every SQL statement issued while the operation is
+ * active runs with whatever is left of the budget, and the outcome of the
+ * operation is recorded here so it can be counted when the operation ends.
+ *
+ * Only time spent inside the database is charged against the budget, the
+ * operations are interactive and the time a user takes to type an answer
+ * must not make the next query time out.  The charge is wall clock time
+ * during which at least one statement of the operation was running, so
+ * statements run at the same time on several connections are charged once.
+ *
+ */
+public class Deadline {
+
+	public static final int COMPLETED = 0;
+	public static final int TIMED_OUT = 1;
+	public static final int CANCELLED = 2;
+	public static final int FAILED = 3;
+
+	// budget used when no per-operation budget is configured (milliseconds)
+	public static final long DEFAULT_BUDGET = 5000;
+
+	private final String operation;
+	private final long budget;
+	private volatile int outcome = COMPLETED;
+
+	// time charged by finished busy periods, and the statements running in
+	// the current one
+	private long spent = 0;
+	private int running = 0;
+	private long busySince = 0;
+
+	/**
+	 * Creates a new deadline for an operation
+	 *
+	 * @param operation the name of the logical operation
+	 * @param budget the time budget in milliseconds
+	 */
+	public Deadline(String operation, long budget) {
+		this.operation = operation;
+		this.budget = budget;
+	}//end Deadline
+
+	/**
+	 * Looks up the budget configured for an operation.  The budget can be
+	 * tuned with -Dpizzastore.deadline.<operation>=<ms>, falling back to
+	 * -Dpizzastore.deadline.default=<ms> and then DEFAULT_BUDGET.
+	 *
+	 * @param operation the name of the logical operation
+	 * @return the time budget in milliseconds
+	 */
+	public static long budgetFor(String operation) {
+		String fallback = System.getProperty("pizzastore.deadline.default", Long.toString(DEFAULT_BUDGET));
+		try {
+			return Long.parseLong(System.getProperty("pizzastore.deadline." + operation, fallback));
+		} catch (NumberFormatException e) {
+			return DEFAULT_BUDGET;
+		}
+	}//end budgetFor
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public int getOutcome() {
+		return outcome;
+	}
+
+	public synchronized long spentMillis() {
+		if (running == 0) return spent;
+		return spent + System.currentTimeMillis() - busySince;
+	}
+
+	public long remainingMillis() {
+		return Math.max(0, budget - spentMillis());
+	}
+
+	/*
+	 * Starts charging the budget, a statement of the operation is sent
+	 **/
+	public synchronized void statementStarted() {
+		if (running++ == 0) busySince = System.currentTimeMillis();
+	}
+
+	/*
+	 * Stops charging the budget once no statement of the operation runs
+	 **/
+	public synchronized void statementFinished() {
+		if (running == 0) return;
+		if (--running == 0) spent += System.currentTimeMillis() - busySince;
+	}
+
+	/*
+	 * Throws if the budget is used up, otherwise returns what is left of it
+	 **/
+	public long checkRemaining() throws SQLException {
+		long remaining = remainingMillis();
+		if (remaining == 0) {
+			markOutcome(TIMED_OUT);
+			throw new SQLException(String.format("Deadline of %d ms exceeded for %s", budget, operation));
+		}
+		return remaining;
+	}//end checkRemaining
+
+	/*
+	 * Records why a statement of this operation failed.  A timeout or a
+	 * cancellation is never downgraded to a plain failure by a later error.
+	 **/
+	public void markOutcome(int outcome) {
+		if (this.outcome == COMPLETED || outcome == TIMED_OUT) {
+			this.outcome = outcome;
+		}
+	}
+
+	/*
+	 * Classifies an error raised while running a statement of this operation.
+	 * The server reports both statement_timeout and pg_cancel_backend as
+	 * "canceling statement due to ..." (SQLSTATE 57014).
+	 **/
+	public int classify(SQLException e) {
+		String message = e.getMessage() == null ? "" : e.getMessage();
+		if (remainingMillis() == 0 || message.contains("statement timeout")) return TIMED_OUT;
+		if (message.contains("canceling statement") || "57014".equals(e.getSQLState())) return CANCELLED;
+		return FAILED;
+	}//end classify
+
+}//end Deadline
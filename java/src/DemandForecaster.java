@@ -0,0 +1,326 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class forecasts the hourly demand of every item at every store from
+ * the order history.  Each store and item is a time series of the quantity
+ * ordered per hour, and its model is one estimate per hour of the week (day
+ * of week x hour, 168 slots): an exponentially weighted average of the
+ * quantities seen in that slot, hours without orders counting as zero.
+ *
+ * The history is read as a server side aggregate (one row per store, item
+ * and hour) streamed through a cursor, never as a whole result.  Training
+ * is incremental: the model remembers the hour it was trained up to and the
+ * next training only reads the hours after it.  Only settled hours are
+ * fitted, the ones ending at least the longest allowed transaction ago (see
+ * ChangeFeed.maxTransactionMillis), so an order committed late is still
+ * counted.  Store ranges are fitted in parallel on a fork/join pool, the
+ * series of a store are only touched by the task owning its range.
+ *
+ * A training that fails leaves the stores it got through fitted.  Every
+ * series knows the last hour it has seen, so the next training skips the
+ * rows those stores already took.
+ *
+ * Hours are counted from 1970-01-01 00:00 in the local wall clock time of
+ * orderTimestamp.
+ *
+ */
+public class DemandForecaster {
+
+	public static final int HOURS_PER_WEEK = 7 * 24;
+
+	// weights of runs of zero hours are looked up below this length
+	private static final int DECAY_TABLE = 1024;
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	/**
+	 * The model of one store and item.  level is the weighted average of
+	 * each slot and weight the total weight it was built from, level/weight
+	 * corrects the estimate of slots seen only a few times.
+	 */
+	private static class Series {
+		final double[] level = new double[HOURS_PER_WEEK];
+		final double[] weight = new double[HOURS_PER_WEEK];
+		long lastHour;	// every hour up to this one has been fitted
+
+		Series(long lastHour) {
+			this.lastHour = lastHour;
+		}
+	}//end Series
+
+	private final double alpha;
+	private final double[] decay = new double[DECAY_TABLE];
+	private final int storesPerTask;
+	private final int threads;
+	private ForkJoinPool pool = null;
+
+	// storeID -> itemName -> series, the item maps are written by one task
+	private final Map<Integer, Map<String, Series>> model = new HashMap<Integer, Map<String, Series>>();
+	// hours before this one are fitted, 0 until the first training
+	private long trainedThrough = 0;
+
+	private long trainings = 0;
+	private long rows = 0;
+	private long trainingNanos = 0;
+	private long lastTrainingNanos = 0;
+
+	/**
+	 * Creates a forecaster.  The smoothing factor (the weight of the newest
+	 * week of a slot), the number of stores fitted per task and the threads
+	 * fitting them can be tuned with -Dpizzastore.forecast.alpha=<0..1>,
+	 * -Dpizzastore.forecast.stores=<stores> and
+	 * -Dpizzastore.forecast.threads=<threads>.
+	 */
+	public DemandForecaster() {
+		double configured = Double.parseDouble(System.getProperty("pizzastore.forecast.alpha", "0.1"));
+		this.alpha = Math.min(1.0, Math.max(0.001, configured));
+		this.storesPerTask = Math.max(1, Integer.getInteger("pizzastore.forecast.stores", 16));
+		this.threads = Math.max(1, Integer.getInteger("pizzastore.forecast.threads", Runtime.getRuntime().availableProcessors()));
+		for (int i = 0; i < DECAY_TABLE; i++) {
+			decay[i] = Math.pow(1 - alpha, i);
+		}
+	}//end DemandForecaster
+
+	/**
+	 * Fits the hours settled since the last training, every hour of the
+	 * history the first time
+	 *
+	 * @param storage where the order history is read
+	 * @return the number of hourly rows fitted
+	 * @throws java.sql.SQLException when the history could not be read
+	 */
+	public synchronized long train(Storage storage) throws SQLException {
+		long toHour = hourOf(LocalDateTime.now().minus(Duration.ofMillis(ChangeFeed.maxTransactionMillis())));
+		if (toHour <= trainedThrough) return 0;
+
+		long start = System.nanoTime();
+		List<Integer> stores = new ArrayList<Integer>(storage.storeIDs());
+		Collections.sort(stores);
+		for (Integer storeID : stores) {
+			if (!model.containsKey(storeID)) model.put(storeID, new HashMap<String, Series>());
+		}
+
+		Fit fit = new Fit(storage, stores, 0, stores.size(), trainedThrough, toHour);
+		try {
+			pool().invoke(fit);
+		} catch (RuntimeException e) {
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof SQLException) throw (SQLException) cause;
+			}
+			throw e;
+		}//end try
+
+		trainedThrough = toHour;
+		trainings++;
+		rows += fit.rows.get();
+		lastTrainingNanos = System.nanoTime() - start;
+		trainingNanos += lastTrainingNanos;
+		return fit.rows.get();
+	}//end train
+
+	/**
+	 * Returns the expected demand of every item of a store in each hour of a
+	 * day, items that were never ordered there are left out
+	 *
+	 * @param storeID the store
+	 * @param day the day forecast
+	 * @return 24 expected quantities per item, by itemName
+	 */
+	public synchronized Map<String, double[]> forecast(int storeID, LocalDate day) {
+		Map<String, double[]> result = new TreeMap<String, double[]>();
+		Map<String, Series> items = model.get(storeID);
+		if (items == null) return result;
+		long midnight = hourOf(day.atStartOfDay());
+		for (Map.Entry<String, Series> entry : items.entrySet()) {
+			Series series = entry.getValue();
+			double[] hours = new double[24];
+			double total = 0;
+			for (int h = 0; h < 24; h++) {
+				int slot = slotOf(midnight + h);
+				hours[h] = series.weight[slot] > 0 ? series.level[slot] / series.weight[slot] : 0;
+				total += hours[h];
+			}
+			if (total > 0) result.put(entry.getKey(), hours);
+		}//end for
+		return result;
+	}//end forecast
+
+	/*
+	 * Fits the stores [from, to) of a sorted store list, splitting it until
+	 * at most storesPerTask stores are left
+	 **/
+	private class Fit extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Storage storage;
+		final List<Integer> stores;
+		final int from;
+		final int to;
+		final long fromHour;
+		final long toHour;
+		final AtomicLong rows;
+
+		Fit(Storage storage, List<Integer> stores, int from, int to, long fromHour, long toHour) {
+			this(storage, stores, from, to, fromHour, toHour, new AtomicLong());
+		}
+
+		private Fit(Storage storage, List<Integer> stores, int from, int to, long fromHour, long toHour, AtomicLong rows) {
+			this.storage = storage;
+			this.stores = stores;
+			this.from = from;
+			this.to = to;
+			this.fromHour = fromHour;
+			this.toHour = toHour;
+			this.rows = rows;
+		}
+
+		protected void compute() {
+			if (to - from > storesPerTask) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Fit(storage, stores, from, middle, fromHour, toHour, rows),
+						new Fit(storage, stores, middle, to, fromHour, toHour, rows));
+				return;
+			}
+			if (from == to) return;
+
+			final int firstStore = stores.get(from);
+			final int lastStore = stores.get(to - 1);
+			final long[] fitted = new long[1];
+			try {
+				storage.scanHourlyDemand(firstStore, lastStore, fromHour, toHour, (storeID, itemName, hour, quantity) -> {
+					Map<String, Series> items = model.get(storeID);
+					// a store created since the list was read waits for the next training
+					if (items == null) return;
+					Series series = items.get(itemName);
+					if (series == null) {
+						series = new Series(hour - 1);
+						items.put(itemName, series);
+					} else if (hour <= series.lastHour) {
+						// taken by a training that failed after fitting it
+						return;
+					}
+					observe(series, hour, quantity);
+					fitted[0]++;
+				});
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}//end try
+
+			// the hours without orders up to the end of the training count as zero
+			for (int i = from; i < to; i++) {
+				for (Series series : model.get(stores.get(i)).values()) {
+					advance(series, toHour - 1);
+				}
+			}
+			rows.addAndGet(fitted[0]);
+		}//end compute
+	}//end Fit
+
+	private void observe(Series series, long hour, long quantity) {
+		if (hour > series.lastHour) {
+			advance(series, hour - 1);
+			series.lastHour = hour;
+		}
+		int slot = slotOf(hour);
+		series.level[slot] = (1 - alpha) * series.level[slot] + alpha * quantity;
+		series.weight[slot] = (1 - alpha) * series.weight[slot] + alpha;
+	}//end observe
+
+	/*
+	 * Fits zero for every hour after lastHour up to and including hour.  A
+	 * slot seen k times in that run keeps (1 - alpha)^k of its level, so a
+	 * run costs one pass over the slots however long it is.
+	 **/
+	private void advance(Series series, long hour) {
+		long gap = hour - series.lastHour;
+		if (gap <= 0) return;
+		long weeks = gap / HOURS_PER_WEEK;
+		int rest = (int) (gap % HOURS_PER_WEEK);
+		int first = slotOf(series.lastHour + 1);
+		if (weeks == 0) {
+			for (int i = 0; i < rest; i++) {
+				skip(series, (first + i) % HOURS_PER_WEEK, 1);
+			}
+		} else {
+			for (int i = 0; i < HOURS_PER_WEEK; i++) {
+				skip(series, (first + i) % HOURS_PER_WEEK, i < rest ? weeks + 1 : weeks);
+			}
+		}
+		series.lastHour = hour;
+	}//end advance
+
+	private void skip(Series series, int slot, long zeros) {
+		double kept = zeros < DECAY_TABLE ? decay[(int) zeros] : Math.pow(1 - alpha, zeros);
+		series.level[slot] *= kept;
+		series.weight[slot] = 1 - (1 - series.weight[slot]) * kept;
+	}
+
+	private synchronized ForkJoinPool pool() {
+		if (pool == null) pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	/*
+	 * Returns the hour of a local time, counted from 1970-01-01 00:00
+	 **/
+	public static long hourOf(LocalDateTime time) {
+		return Math.floorDiv(time.toEpochSecond(ZoneOffset.UTC), 3600);
+	}
+
+	/*
+	 * Returns the hour of an orderTimestamp as Postgres prints it
+	 **/
+	public static long hourOf(String timestamp) {
+		return hourOf(Timestamp.valueOf(timestamp.trim()).toLocalDateTime());
+	}
+
+	/*
+	 * Returns the start of an hour formatted as a timestamp literal
+	 **/
+	public static String timestampOf(long hour) {
+		return LocalDateTime.ofEpochSecond(hour * 3600, 0, ZoneOffset.UTC).format(TIMESTAMP);
+	}
+
+	/*
+	 * Returns the hour of the week of an hour, 0 is Monday 00:00
+	 **/
+	public static int slotOf(long hour) {
+		// 1970-01-01 was a Thursday
+		long day = Math.floorDiv(hour, 24);
+		return Math.floorMod(day + 3, 7) * 24 + Math.floorMod(hour, 24);
+	}
+
+	/*
+	 * Returns true once the model was trained
+	 **/
+	public synchronized boolean isEmpty() {
+		return trainings == 0;
+	}
+
+	/*
+	 * Prints the trainings, rows fitted and training speed to standard out
+	 **/
+	public synchronized void print() {
+		int series = 0;
+		for (Map<String, Series> items : model.values()) series += items.size();
+		double seconds = trainingNanos / 1e9;
+		System.out.println("FORECAST TRAININGS\tROWS\tSERIES\tLAST MS\tROWS/S");
+		System.out.printf("\t\t%d\t%d\t%d\t%d\t%.1f\n", trainings, rows, series,
+				lastTrainingNanos / 1000000, seconds == 0 ? 0.0 : rows / seconds);
+	}//end print
+
+}//end DemandForecaster
@@ -0,0 +1,265 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class hands 'incomplete' orders to drivers.  Every store has its own
+ * concurrent priority queue, oldest orders first and larger orders first
+ * among orders of the same age.
+ *
+ * Claiming is a compare-and-set at two levels: in memory an entry can only be
+ * taken once, and in the database the claim is a single conditional UPDATE
+ * from 'incomplete' to 'in progress', so a driver on another instance can
+ * never take the same order.  A claim takes the first entries of the queue
+ * and moves the first of them still 'incomplete' in one statement, which
+ * also reports the status of the others: entries claimed or changed
+ * elsewhere are dropped and the rest go back to the queue.
+ *
+ * The queues are loaded when the process starts.  Orders placed or set back
+ * to 'incomplete' by other instances arrive through the change feed and are
+ * read in by the next claim, as is everything after the feed missed events.
+ * Orders are ranked by their orderTimestamp as written in the database.
+ *
+ */
+public class DispatchQueue {
+
+	public static final String INCOMPLETE = "incomplete";
+	public static final String IN_PROGRESS = "in progress";
+
+	/**
+	 * An order waiting for a driver
+	 */
+	public static class PendingOrder implements Comparable<PendingOrder> {
+		public final int orderID;
+		public final int storeID;
+		public final long placedAt;
+		public final int size;
+		private final AtomicBoolean taken = new AtomicBoolean();
+
+		public PendingOrder(int orderID, int storeID, long placedAt, int size) {
+			this.orderID = orderID;
+			this.storeID = storeID;
+			this.placedAt = placedAt;
+			this.size = size;
+		}
+
+		public int compareTo(PendingOrder other) {
+			if (placedAt != other.placedAt) return Long.compare(placedAt, other.placedAt);
+			if (size != other.size) return Integer.compare(other.size, size);
+			return Integer.compare(orderID, other.orderID);
+		}
+	}//end PendingOrder
+
+	private static final String PENDING_QUERY =
+			"SELECT f.orderID, f.storeID, f.orderTimestamp, COALESCE(SUM(i.quantity), 0) " +
+			"FROM FoodOrder f LEFT JOIN ItemsInOrder i ON i.orderID = f.orderID AND i.orderTimestamp = f.orderTimestamp " +
+			"WHERE f.orderStatus = '" + INCOMPLETE + "'%s " +
+			"GROUP BY f.orderID, f.storeID, f.orderTimestamp";
+
+	// moves the first candidate still 'incomplete', in queue order, and
+	// returns the status every candidate had with a flag on the claimed one
+	private static final String CLAIM_QUERY =
+			"WITH candidate AS (SELECT orderID, orderStatus FROM FoodOrder WHERE storeID = %1$d AND orderID IN (%2$s)), " +
+			"claimed AS (UPDATE FoodOrder f SET orderStatus = '" + IN_PROGRESS + "' " +
+			"FROM (SELECT orderID, orderTimestamp FROM FoodOrder WHERE storeID = %1$d AND orderID IN (%2$s) AND orderStatus = '" + INCOMPLETE + "' " +
+			"ORDER BY array_position(ARRAY[%2$s], orderID) LIMIT 1 FOR UPDATE SKIP LOCKED) next " +
+			"WHERE f.orderID = next.orderID AND f.orderTimestamp = next.orderTimestamp RETURNING f.orderID) " +
+			"SELECT c.orderID, c.orderStatus, CASE WHEN c.orderID IN (SELECT orderID FROM claimed) THEN 1 ELSE 0 END FROM candidate c";
+
+	private final PizzaStore esql;
+	private final int candidates;
+	private final Map<Integer, PriorityBlockingQueue<PendingOrder>> stores = new ConcurrentHashMap<Integer, PriorityBlockingQueue<PendingOrder>>();
+	private final Map<Integer, PendingOrder> pending = new ConcurrentHashMap<Integer, PendingOrder>();
+	// orders that became 'incomplete' elsewhere, read in by the next claim
+	private final Set<Integer> arrived = ConcurrentHashMap.newKeySet();
+	private volatile boolean started = false;
+	private volatile boolean stale = false;
+
+	/**
+	 * Creates the dispatch queues.  The number of queued orders a claim
+	 * tries at once can be tuned with -Dpizzastore.dispatch.candidates=<n>.
+	 *
+	 * @param esql the database the orders are claimed in
+	 */
+	public DispatchQueue(PizzaStore esql) {
+		this.esql = esql;
+		this.candidates = Math.max(1, Integer.getInteger("pizzastore.dispatch.candidates", 16));
+	}
+
+	/**
+	 * Loads every incomplete order from the database, dropping what was
+	 * queued before.  Called when the process starts, after the change feed
+	 * so no order placed in between is missed.
+	 *
+	 * @throws java.sql.SQLException when the orders could not be read
+	 */
+	public synchronized void rebuild() throws SQLException {
+		stale = false;
+		arrived.clear();
+		List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(PENDING_QUERY, ""));
+		for (PendingOrder order : pending.values()) {
+			order.taken.set(true);
+		}
+		pending.clear();
+		stores.clear();
+		for (List<String> row : rows) {
+			add(toPending(row));
+		}
+		started = true;
+	}//end rebuild
+
+	/**
+	 * Queues a newly placed order
+	 *
+	 * @param orderID the order id
+	 * @param storeID the store the order was placed at
+	 * @param orderTimestamp the orderTimestamp of the order as written
+	 * @param size the number of units in the order
+	 */
+	public void offer(int orderID, int storeID, String orderTimestamp, int size) {
+		if (!started) return;
+		add(new PendingOrder(orderID, storeID, Timestamp.valueOf(orderTimestamp.trim()).getTime(), size));
+	}
+
+	/**
+	 * Queues an order that was placed or set back to 'incomplete', here or
+	 * by another instance.  It is read from the database by the next claim.
+	 *
+	 * @param orderID the order id
+	 */
+	public void requeue(int orderID) {
+		if (!pending.containsKey(orderID)) arrived.add(orderID);
+	}
+
+	/*
+	 * Drops an order that left the 'incomplete' state some other way
+	 **/
+	public void remove(int orderID) {
+		arrived.remove(orderID);
+		PendingOrder order = pending.remove(orderID);
+		if (order != null) order.taken.set(true);
+	}
+
+	/*
+	 * Changes may have been missed, the next claim loads every queue again
+	 **/
+	public void resync() {
+		stale = true;
+	}
+
+	/**
+	 * Claims the next order of a store for a driver and moves it to
+	 * 'in progress'.  A claim is at most one UPDATE, if every entry it tried
+	 * turns out to be gone the driver asks again.
+	 *
+	 * @param storeID the store the driver works for
+	 * @return the claimed order or null if no incomplete order could be claimed
+	 * @throws java.sql.SQLException when the claim could not be written
+	 */
+	public PendingOrder claimNext(int storeID) throws SQLException {
+		if (!started || stale) {
+			rebuild();
+		} else if (!arrived.isEmpty()) {
+			loadArrived();
+		}
+		PriorityBlockingQueue<PendingOrder> queue = stores.get(storeID);
+		if (queue == null) return null;
+
+		List<PendingOrder> tried = new ArrayList<PendingOrder>();
+		PendingOrder order;
+		while (tried.size() < candidates && (order = queue.poll()) != null) {
+			if (order.taken.compareAndSet(false, true)) tried.add(order);
+		}
+		if (tried.isEmpty()) return null;
+
+		StringBuilder ids = new StringBuilder();
+		for (PendingOrder candidate : tried) {
+			if (ids.length() > 0) ids.append(", ");
+			ids.append(candidate.orderID);
+		}
+		List<List<String>> rows;
+		try {
+			rows = esql.executeQueryAndReturnResult(String.format(CLAIM_QUERY, storeID, ids));
+		} catch (SQLException e) {
+			// nothing was claimed, the entries stay claimable
+			for (PendingOrder candidate : tried) putBack(queue, candidate);
+			throw e;
+		}//end try
+
+		Map<Integer, List<String>> status = new HashMap<Integer, List<String>>();
+		for (List<String> row : rows) {
+			status.put(Integer.parseInt(row.get(0).trim()), row);
+		}
+		PendingOrder claimed = null;
+		for (PendingOrder candidate : tried) {
+			List<String> row = status.get(candidate.orderID);
+			if (row != null && row.get(2).trim().equals("1")) {
+				claimed = candidate;
+				pending.remove(candidate.orderID, candidate);
+			} else if (row != null && row.get(1).trim().equals(INCOMPLETE)) {
+				// not first, or being claimed by another instance right now
+				putBack(queue, candidate);
+			} else {
+				pending.remove(candidate.orderID, candidate);
+			}
+		}//end for
+		return claimed;
+	}//end claimNext
+
+	/*
+	 * Reads in the orders that arrived through the change feed, in one query
+	 **/
+	private void loadArrived() throws SQLException {
+		StringBuilder ids = new StringBuilder();
+		List<Integer> loading = new ArrayList<Integer>();
+		for (Integer orderID : arrived) {
+			arrived.remove(orderID);
+			if (pending.containsKey(orderID)) continue;
+			if (ids.length() > 0) ids.append(", ");
+			ids.append(orderID);
+			loading.add(orderID);
+		}
+		if (loading.isEmpty()) return;
+		try {
+			for (List<String> row : esql.executeQueryAndReturnResult(String.format(PENDING_QUERY, " AND f.orderID IN (" + ids + ")"))) {
+				add(toPending(row));
+			}
+		} catch (SQLException e) {
+			arrived.addAll(loading);
+			throw e;
+		}//end try
+	}//end loadArrived
+
+	private void putBack(PriorityBlockingQueue<PendingOrder> queue, PendingOrder order) {
+		// an entry dropped by remove meanwhile stays dropped
+		if (pending.get(order.orderID) != order) return;
+		order.taken.set(false);
+		queue.add(order);
+	}
+
+	/*
+	 * Returns the number of orders waiting at a store
+	 **/
+	public int size(int storeID) {
+		PriorityBlockingQueue<PendingOrder> queue = stores.get(storeID);
+		return queue == null ? 0 : queue.size();
+	}
+
+	private void add(PendingOrder order) {
+		if (pending.putIfAbsent(order.orderID, order) != null) return;
+		stores.computeIfAbsent(order.storeID, k -> new PriorityBlockingQueue<PendingOrder>()).add(order);
+	}
+
+	private static PendingOrder toPending(List<String> row) {
+		return new PendingOrder(Integer.parseInt(row.get(0)), Integer.parseInt(row.get(1)),
+				Timestamp.valueOf(row.get(2).trim()).getTime(), Integer.parseInt(row.get(3)));
+	}
+
+}//end DispatchQueue
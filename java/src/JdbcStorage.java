@@ -0,0 +1,208 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class implements Storage on Postgres through the execute methods of
+ * a SqlSession, so every statement runs under the deadline of the current
+ * operation.  The session is a PizzaStore or the bare session of an async
+ * worker thread.
+ *
+ */
+public class JdbcStorage implements Storage {
+
+	// rows held at a time by the cursor of scanHourlyDemand
+	private static final int FETCH_SIZE = 1000;
+
+	private final SqlSession esql;
+	private final OrderIdAllocator orderIds;
+
+	public JdbcStorage(PizzaStore esql) {
+		this(esql, esql.getOrderIdAllocator());
+	}
+
+	public JdbcStorage(SqlSession esql, OrderIdAllocator orderIds) {
+		this.esql = esql;
+		this.orderIds = orderIds;
+	}
+
+	public List<String> findUser(String login) throws SQLException {
+		return first(esql.executeQueryAndReturnResult(String.format("SELECT * FROM Users WHERE login = '%s'", login)));
+	}
+
+	public String findPassword(String login) throws SQLException {
+		List<String> user = first(esql.executeQueryAndReturnResult(String.format("SELECT password FROM Users WHERE login = '%s' LIMIT 1", login)));
+		return user == null ? null : user.get(0);
+	}
+
+	public List<List<String>> plainPasswords() throws SQLException {
+		return esql.executeQueryAndReturnResult("SELECT login, password FROM Users WHERE password NOT LIKE 'pbkdf2$%'");
+	}
+
+	public void createUser(String login, String password, String role, String phoneNum) throws SQLException {
+		esql.executeUpdate(String.format("INSERT INTO Users (login, password, role, phoneNum) VALUES ('%s', '%s', '%s', '%s')", login, password, role, phoneNum));
+	}
+
+	public int updateUser(String login, String attribute, String value) throws SQLException {
+		return esql.executeUpdate(String.format("UPDATE Users SET %s = '%s' WHERE login = '%s'", attribute, value, login));
+	}
+
+	public List<String> findItem(String itemName) throws SQLException {
+		return first(esql.executeQueryAndReturnResult(String.format("SELECT * FROM Items WHERE itemName = '%s'", itemName)));
+	}
+
+	public List<List<String>> findItems(String typeOfItem, String maxPrice, int sort) throws SQLException {
+		String query = "SELECT * FROM Items i";
+		if (typeOfItem != null) query += String.format(" WHERE i.typeOfItem = '%s'", typeOfItem);
+		if (maxPrice != null) query += String.format(" %s price BETWEEN 0 AND %s", typeOfItem == null ? "WHERE" : "AND", maxPrice);
+		if (sort == PRICE_DESC) query += " ORDER BY price DESC";
+		else if (sort == PRICE_ASC) query += " ORDER BY price ASC";
+		return esql.executeQueryAndReturnResult(query);
+	}//end findItems
+
+	public void insertItem(String itemName, String ingredients, String typeOfItem, String price, String description) throws SQLException {
+		esql.executeUpdate(String.format("INSERT INTO Items(itemName, ingredients, typeOfItem, price, description) VALUES('%s', '%s', '%s', %s, '%s')",
+				itemName, ingredients, typeOfItem, price, description));
+	}
+
+	public int updateItem(String itemName, String attribute, String value) throws SQLException {
+		return esql.executeUpdate(String.format("UPDATE Items SET %s = '%s' WHERE itemName = '%s'", attribute, value, itemName));
+	}
+
+	public int deleteItem(String itemName) throws SQLException {
+		return esql.executeUpdate(String.format("DELETE FROM Items WHERE itemName = '%s'", itemName));
+	}
+
+	public List<List<String>> promotions() throws SQLException {
+		return esql.executeQueryAndReturnResult("SELECT kind, storeID, target, amount, startHour, endHour FROM Promotion ORDER BY promoID");
+	}
+
+	public List<List<String>> openStores() throws SQLException {
+		return esql.executeQueryAndReturnResult("SELECT * FROM Store WHERE isOpen = 'yes'");
+	}
+
+	public List<Integer> storeIDs() throws SQLException {
+		List<Integer> stores = new ArrayList<Integer>();
+		for (List<String> store : esql.executeQueryAndReturnResult("SELECT storeID FROM Store ORDER BY storeID")) {
+			stores.add(Integer.parseInt(store.get(0).trim()));
+		}
+		return stores;
+	}
+
+	public int nextOrderId() throws SQLException {
+		return orderIds.nextId();
+	}
+
+	public List<String> insertOrder(int orderID, String login, int storeID, String totalPrice, List<String> itemNames, List<Integer> quantities) throws SQLException {
+		// the order row and its line items go to the database together in one
+		// statement.  The server's CURRENT_TIMESTAMP is the order time, it is
+		// returned with the row and copied to the line items so they land in
+		// the partition of their order
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < itemNames.size(); i++) {
+			if (i > 0) lines.append(", ");
+			lines.append(String.format("('%s', %d)", itemNames.get(i), quantities.get(i)));
+		}
+		String query = String.format("WITH o AS (INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
+				"VALUES (%d, '%s', %d, %s, CURRENT_TIMESTAMP, 'incomplete') RETURNING orderTimestamp)",
+				orderID, login, storeID, totalPrice);
+		if (lines.length() > 0) {
+			query += String.format(", i AS (INSERT INTO ItemsInOrder (orderID, orderTimestamp, itemName, quantity) " +
+					"SELECT %d, o.orderTimestamp, v.itemName, v.quantity FROM o, (VALUES %s) AS v (itemName, quantity))",
+					orderID, lines);
+		}
+		query += " SELECT orderTimestamp FROM o";
+		List<String> order = new ArrayList<String>();
+		order.add(Integer.toString(orderID));
+		order.add(login);
+		order.add(Integer.toString(storeID));
+		order.add(totalPrice);
+		order.add(esql.executeQueryAndReturnResult(query).get(0).get(0));
+		order.add("incomplete");
+		return order;
+	}//end insertOrder
+
+	public List<String> findOrder(int orderID) throws SQLException {
+		return first(esql.executeQueryAndReturnResult(String.format("SELECT * FROM FoodOrder WHERE orderID = %d", orderID)));
+	}
+
+	public List<List<String>> ordersOf(String login, int limit) throws SQLException {
+		String query = String.format("SELECT * FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC", login);
+		if (limit > 0) query += " LIMIT " + limit;
+		return esql.executeQueryAndReturnResult(query);
+	}
+
+	public List<List<String>> orderLines(int orderID, String orderTimestamp) throws SQLException {
+		String query = String.format("SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = %d", orderID);
+		// the order's timestamp limits the lookup to the partition of its month
+		if (orderTimestamp != null) query += String.format(" AND orderTimestamp = '%s'", orderTimestamp);
+		return esql.executeQueryAndReturnResult(query);
+	}
+
+	public int updateOrderStatus(int orderID, String status) throws SQLException {
+		return esql.executeUpdate(String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %d", status, orderID));
+	}
+
+	public int updateOrderStatus(int orderID, int storeID, String status) throws SQLException {
+		return esql.executeUpdate(String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %d AND storeID = %d", status, orderID, storeID));
+	}
+
+	/*
+	 * Postgres sums the lines per store, item and hour and the sums are read
+	 * through a cursor, FETCH_SIZE rows at a time.  The cursor has a
+	 * connection of its own, so scans of several store ranges can run at once.
+	 **/
+	public void scanHourlyDemand(int firstStore, int lastStore, long fromHour, long toHour, DemandSink sink) throws SQLException {
+		String from = DemandForecaster.timestampOf(fromHour);
+		String to = DemandForecaster.timestampOf(toHour);
+		Connection connection = esql.openConnection();
+		try {
+			connection.setAutoCommit(false);
+			Statement stmt = connection.createStatement();
+			// the time range is given on both tables so each only scans the
+			// partitions of the months read
+			stmt.executeUpdate(String.format(
+					"DECLARE demand_cursor NO SCROLL CURSOR FOR " +
+					"SELECT o.storeID, i.itemName, floor(extract(epoch FROM o.orderTimestamp) / 3600)::bigint AS hour, SUM(i.quantity) " +
+					"FROM FoodOrder o JOIN ItemsInOrder i ON i.orderID = o.orderID AND i.orderTimestamp = o.orderTimestamp " +
+					"WHERE o.storeID BETWEEN %d AND %d " +
+					"AND o.orderTimestamp >= '%s' AND o.orderTimestamp < '%s' " +
+					"AND i.orderTimestamp >= '%s' AND i.orderTimestamp < '%s' " +
+					"GROUP BY o.storeID, i.itemName, hour ORDER BY o.storeID, i.itemName, hour",
+					firstStore, lastStore, from, to, from, to));
+			while (true) {
+				ResultSet rs = stmt.executeQuery("FETCH " + FETCH_SIZE + " FROM demand_cursor");
+				int rows = 0;
+				while (rs.next()) {
+					sink.add(rs.getInt(1), rs.getString(2), rs.getLong(3), rs.getLong(4));
+					rows++;
+				}
+				rs.close();
+				if (rows < FETCH_SIZE) break;
+			}//end while
+			stmt.executeUpdate("CLOSE demand_cursor");
+			stmt.close();
+			connection.commit();
+		} finally {
+			connection.close();
+		}//end try
+	}//end scanHourlyDemand
+
+	/*
+	 * Formats a time the way Postgres prints a timestamp column, with
+	 * milliseconds and no trailing zeros
+	 **/
+	public static String formatTimestamp(long millis) {
+		String text = new Timestamp(millis).toString();
+		return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+	}
+
+	private static List<String> first(List<List<String>> rows) {
+		return rows.isEmpty() ? null : rows.get(0);
+	}
+
+}//end JdbcStorage
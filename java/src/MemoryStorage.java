@@ -0,0 +1,494 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class implements Storage in memory, for benchmarks, tests and
+ * machines without Postgres.  Every table is a concurrent hash index on its
+ * key (login, itemName, storeID, orderID), and the orders of every user are
+ * also kept in a concurrent skip list sorted newest first, so order history
+ * reads never scan.
+ *
+ * Rows are immutable arrays replaced on update, single row reads and writes
+ * are lock-free.  Writes that must see several tables at once (an order and
+ * its foreign keys, a renamed login, a removed item and its order lines)
+ * take a read-write lock so they never interleave.  The constraints of
+ * create_tables.sql are checked and reported with the messages Postgres
+ * uses.
+ *
+ * The whole state can be loaded from the CSV files of the data directory,
+ * and saved to and restored from a gzip snapshot file.
+ *
+ */
+public class MemoryStorage implements Storage {
+
+	private static final String SNAPSHOT_MAGIC = "PIZZASTORE-SNAPSHOT 1";
+
+	private static final List<String> USER_COLUMNS = Arrays.asList("login", "password", "role", "favoriteItems", "phoneNum");
+	private static final List<String> ITEM_COLUMNS = Arrays.asList("itemName", "ingredients", "typeOfItem", "price", "description");
+
+	/**
+	 * One order and its lines
+	 */
+	private static class Order {
+		final int orderID;
+		final String login;
+		final long time;
+		volatile String[] row;
+		final List<String[]> lines = new CopyOnWriteArrayList<String[]>();
+
+		Order(String[] row) {
+			this.orderID = Integer.parseInt(row[0].trim());
+			this.login = row[1];
+			this.time = Timestamp.valueOf(row[4].trim()).getTime();
+			this.row = row;
+		}
+	}//end Order
+
+	// newest first, ties broken by orderID so distinct orders never compare equal
+	private static final Comparator<Order> NEWEST_FIRST = new Comparator<Order>() {
+		public int compare(Order a, Order b) {
+			if (a.time != b.time) return Long.compare(b.time, a.time);
+			return Integer.compare(b.orderID, a.orderID);
+		}
+	};
+
+	private final Map<String, String[]> users = new ConcurrentHashMap<String, String[]>();
+	private final Map<String, String[]> items = new ConcurrentHashMap<String, String[]>();
+	private final Map<Integer, String[]> stores = new ConcurrentHashMap<Integer, String[]>();
+	private final List<String[]> promotions = new CopyOnWriteArrayList<String[]>();
+	private final Map<Integer, Order> orders = new ConcurrentHashMap<Integer, Order>();
+	private final Map<String, ConcurrentSkipListSet<Order>> ordersByUser = new ConcurrentHashMap<String, ConcurrentSkipListSet<Order>>();
+	private final AtomicInteger lastOrderId = new AtomicInteger();
+	private final ReadWriteLock tables = new ReentrantReadWriteLock();
+
+	/*
+	 * Users
+	 **/
+	public List<String> findUser(String login) {
+		return row(users.get(login));
+	}
+
+	public String findPassword(String login) {
+		String[] user = users.get(login);
+		return user == null ? null : user[1];
+	}
+
+	public List<List<String>> plainPasswords() {
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (String[] user : users.values()) {
+			if (!user[1].startsWith("pbkdf2$")) result.add(Arrays.asList(user[0], user[1]));
+		}
+		return result;
+	}
+
+	public void createUser(String login, String password, String role, String phoneNum) throws SQLException {
+		String[] user = {login, password, role, null, phoneNum};
+		if (users.putIfAbsent(login, user) != null) throw duplicate("users_pkey", "login", login);
+	}
+
+	public int updateUser(String login, String attribute, String value) throws SQLException {
+		int column = column(USER_COLUMNS, attribute);
+		if (column != 0) {
+			String[] user;
+			do {
+				user = users.get(login);
+				if (user == null) return 0;
+			} while (!users.replace(login, user, with(user, column, value)));
+			return 1;
+		}
+
+		// a new login is a new key, checked against the orders referencing the old one
+		tables.writeLock().lock();
+		try {
+			String[] user = users.get(login);
+			if (user == null) return 0;
+			if (value.equals(login)) return 1;
+			if (users.containsKey(value)) throw duplicate("users_pkey", "login", value);
+			ConcurrentSkipListSet<Order> placed = ordersByUser.get(login);
+			if (placed != null && !placed.isEmpty()) {
+				throw new SQLException("update or delete on table \"users\" violates foreign key constraint \"foodorder_login_fkey\" on table \"foodorder\"");
+			}
+			users.put(value, with(user, 0, value));
+			users.remove(login);
+			return 1;
+		} finally {
+			tables.writeLock().unlock();
+		}//end try
+	}//end updateUser
+
+	/*
+	 * Items
+	 **/
+	public List<String> findItem(String itemName) {
+		return row(items.get(itemName));
+	}
+
+	public List<List<String>> findItems(String typeOfItem, String maxPrice, int sort) {
+		long max = maxPrice == null ? Long.MAX_VALUE : PricingEngine.parseCents(maxPrice);
+		List<String[]> matches = new ArrayList<String[]>();
+		for (String[] item : items.values()) {
+			if (typeOfItem != null && !typeOfItem.equals(item[2])) continue;
+			long price = PricingEngine.parseCents(item[3]);
+			if (price < 0 || price > max) continue;
+			matches.add(item);
+		}
+		if (sort != UNSORTED) {
+			Comparator<String[]> byPrice = new Comparator<String[]>() {
+				public int compare(String[] a, String[] b) {
+					return Long.compare(PricingEngine.parseCents(a[3]), PricingEngine.parseCents(b[3]));
+				}
+			};
+			Collections.sort(matches, sort == PRICE_ASC ? byPrice : Collections.reverseOrder(byPrice));
+		}
+		return rows(matches);
+	}//end findItems
+
+	public void insertItem(String itemName, String ingredients, String typeOfItem, String price, String description) throws SQLException {
+		String[] item = {itemName, ingredients, typeOfItem, PricingEngine.formatCents(PricingEngine.parseCents(price)), description};
+		if (items.putIfAbsent(itemName, item) != null) throw duplicate("items_pkey", "itemname", itemName);
+	}
+
+	public int updateItem(String itemName, String attribute, String value) throws SQLException {
+		int column = column(ITEM_COLUMNS, attribute);
+		if (column == 0) throw new SQLException("Renaming items is not supported");
+		if (column == 3) value = PricingEngine.formatCents(PricingEngine.parseCents(value));
+		String[] item;
+		do {
+			item = items.get(itemName);
+			if (item == null) return 0;
+		} while (!items.replace(itemName, item, with(item, column, value)));
+		return 1;
+	}//end updateItem
+
+	public int deleteItem(String itemName) {
+		tables.writeLock().lock();
+		try {
+			if (items.remove(itemName) == null) return 0;
+			// ON DELETE CASCADE of ItemsInOrder
+			for (Order order : orders.values()) {
+				for (String[] line : order.lines) {
+					if (line[0].equals(itemName)) order.lines.remove(line);
+				}
+			}
+			return 1;
+		} finally {
+			tables.writeLock().unlock();
+		}//end try
+	}//end deleteItem
+
+	public List<List<String>> promotions() {
+		return rows(promotions);
+	}
+
+	/*
+	 * Stores
+	 **/
+	public List<List<String>> openStores() {
+		List<String[]> open = new ArrayList<String[]>();
+		for (String[] store : stores.values()) {
+			if ("yes".equals(store[4])) open.add(store);
+		}
+		return rows(open);
+	}
+
+	public List<Integer> storeIDs() {
+		List<Integer> result = new ArrayList<Integer>(stores.keySet());
+		Collections.sort(result);
+		return result;
+	}
+
+	/*
+	 * Orders
+	 **/
+	public int nextOrderId() {
+		return lastOrderId.incrementAndGet();
+	}
+
+	public List<String> insertOrder(int orderID, String login, int storeID, String totalPrice, List<String> itemNames, List<Integer> quantities) throws SQLException {
+		String now = JdbcStorage.formatTimestamp(System.currentTimeMillis());
+		tables.readLock().lock();
+		try {
+			if (!users.containsKey(login)) throw missing("foodorder_login_fkey", "login", login, "users");
+			if (!stores.containsKey(storeID)) throw missing("foodorder_storeid_fkey", "storeid", Integer.toString(storeID), "store");
+			Order order = new Order(new String[] {Integer.toString(orderID), login, Integer.toString(storeID), totalPrice, now, "incomplete"});
+			for (int i = 0; i < itemNames.size(); i++) {
+				if (!items.containsKey(itemNames.get(i))) throw missing("itemsinorder_itemname_fkey", "itemname", itemNames.get(i), "items");
+				order.lines.add(new String[] {itemNames.get(i), Integer.toString(quantities.get(i))});
+			}
+			add(order);
+			return row(order.row);
+		} finally {
+			tables.readLock().unlock();
+		}//end try
+	}//end insertOrder
+
+	public List<String> findOrder(int orderID) {
+		Order order = orders.get(orderID);
+		return order == null ? null : row(order.row);
+	}
+
+	public List<List<String>> ordersOf(String login, int limit) {
+		List<List<String>> result = new ArrayList<List<String>>();
+		ConcurrentSkipListSet<Order> placed = ordersByUser.get(login);
+		if (placed == null) return result;
+		for (Order order : placed) {
+			result.add(row(order.row));
+			if (result.size() == limit) break;
+		}
+		return result;
+	}//end ordersOf
+
+	public List<List<String>> orderLines(int orderID, String orderTimestamp) {
+		Order order = orders.get(orderID);
+		return order == null ? new ArrayList<List<String>>() : rows(order.lines);
+	}
+
+	public int updateOrderStatus(int orderID, String status) {
+		Order order = orders.get(orderID);
+		if (order == null) return 0;
+		synchronized (order) {
+			order.row = with(order.row, 5, status);
+		}
+		return 1;
+	}
+
+	public int updateOrderStatus(int orderID, int storeID, String status) {
+		Order order = orders.get(orderID);
+		if (order == null || Integer.parseInt(order.row[2].trim()) != storeID) return 0;
+		return updateOrderStatus(orderID, status);
+	}
+
+	public void scanHourlyDemand(int firstStore, int lastStore, long fromHour, long toHour, DemandSink sink) {
+		// storeID -> itemName -> hour -> quantity
+		TreeMap<Integer, TreeMap<String, TreeMap<Long, long[]>>> demand = new TreeMap<Integer, TreeMap<String, TreeMap<Long, long[]>>>();
+		for (Order order : orders.values()) {
+			String[] row = order.row;
+			int storeID = Integer.parseInt(row[2].trim());
+			if (storeID < firstStore || storeID > lastStore) continue;
+			long hour = DemandForecaster.hourOf(row[4]);
+			if (hour < fromHour || hour >= toHour) continue;
+			TreeMap<String, TreeMap<Long, long[]>> items = demand.computeIfAbsent(storeID, k -> new TreeMap<String, TreeMap<Long, long[]>>());
+			for (String[] line : order.lines) {
+				items.computeIfAbsent(line[0], k -> new TreeMap<Long, long[]>())
+						.computeIfAbsent(hour, k -> new long[1])[0] += Long.parseLong(line[1].trim());
+			}
+		}//end for
+		for (Map.Entry<Integer, TreeMap<String, TreeMap<Long, long[]>>> store : demand.entrySet()) {
+			for (Map.Entry<String, TreeMap<Long, long[]>> item : store.getValue().entrySet()) {
+				for (Map.Entry<Long, long[]> hour : item.getValue().entrySet()) {
+					sink.add(store.getKey(), item.getKey(), hour.getKey(), hour.getValue()[0]);
+				}
+			}
+		}//end for
+	}//end scanHourlyDemand
+
+	private void add(Order order) throws SQLException {
+		if (orders.putIfAbsent(order.orderID, order) != null) {
+			throw duplicate("foodorder_pkey", "orderid", Integer.toString(order.orderID));
+		}
+		ordersByUser.computeIfAbsent(order.login, k -> new ConcurrentSkipListSet<Order>(NEWEST_FIRST)).add(order);
+		lastOrderId.accumulateAndGet(order.orderID, Math::max);
+	}//end add
+
+	/**
+	 * Loads the CSV files of a data directory (users.csv, items.csv,
+	 * store.csv, foodorder.csv, itemsinorder.csv and, if present,
+	 * promotions.csv) the way load_data.sql does
+	 *
+	 * @param directory the data directory
+	 * @throws java.io.IOException when a file could not be read
+	 * @throws java.sql.SQLException when a row breaks a constraint
+	 */
+	public void loadCsv(File directory) throws IOException, SQLException {
+		// numeric columns are stored the way Postgres prints them back
+		for (String[] user : readCsv(new File(directory, "users.csv"))) {
+			if (users.putIfAbsent(user[0], user) != null) throw duplicate("users_pkey", "login", user[0]);
+		}
+		for (String[] item : readCsv(new File(directory, "items.csv"))) {
+			item[3] = PricingEngine.formatCents(PricingEngine.parseCents(item[3]));
+			if (items.putIfAbsent(item[0], item) != null) throw duplicate("items_pkey", "itemname", item[0]);
+		}
+		for (String[] store : readCsv(new File(directory, "store.csv"))) {
+			store[0] = store[0].trim();
+			if (store[5] != null) store[5] = store[5].trim();
+			stores.put(Integer.parseInt(store[0]), store);
+		}
+		for (String[] order : readCsv(new File(directory, "foodorder.csv"))) {
+			order[0] = order[0].trim();
+			order[2] = order[2].trim();
+			order[3] = PricingEngine.formatCents(PricingEngine.parseCents(order[3]));
+			add(new Order(order));
+		}
+		for (String[] line : readCsv(new File(directory, "itemsinorder.csv"))) {
+			Order order = orders.get(Integer.parseInt(line[0].trim()));
+			if (order == null) throw missing("itemsinorder_orderid_fkey", "orderid", line[0], "foodorder");
+			order.lines.add(new String[] {line[1], line[2].trim()});
+		}
+		File rules = new File(directory, "promotions.csv");
+		if (rules.exists()) {
+			for (String[] rule : readCsv(rules)) {
+				promotions.add(new String[] {rule[1], rule[2], rule[3], rule[4], rule[5], rule[6]});
+			}
+		}
+	}//end loadCsv
+
+	private static List<String[]> readCsv(File file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();	// header
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) continue;
+				rows.add(MenuSync.parseCsvLine(line).toArray(new String[0]));
+			}
+		} finally {
+			reader.close();
+		}//end try
+		return rows;
+	}//end readCsv
+
+	/**
+	 * Writes the whole state to a gzip snapshot.  The snapshot is written
+	 * next to the file and renamed over it once complete.
+	 *
+	 * @param file the snapshot file
+	 * @throws java.io.IOException when the snapshot could not be written
+	 */
+	public void saveSnapshot(File file) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		tables.writeLock().lock();
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temporary))));
+			try {
+				out.writeUTF(SNAPSHOT_MAGIC);
+				writeRows(out, users.values());
+				writeRows(out, items.values());
+				writeRows(out, stores.values());
+				writeRows(out, promotions);
+				out.writeInt(orders.size());
+				for (Order order : orders.values()) {
+					writeRow(out, order.row);
+					writeRows(out, order.lines);
+				}
+			} finally {
+				out.close();
+			}//end try
+		} finally {
+			tables.writeLock().unlock();
+		}//end try
+		if (file.exists() && !file.delete()) throw new IOException("Cannot replace " + file);
+		if (!temporary.renameTo(file)) throw new IOException("Cannot rename " + temporary + " to " + file);
+	}//end saveSnapshot
+
+	/**
+	 * Restores the state saved by saveSnapshot
+	 *
+	 * @param file the snapshot file
+	 * @throws java.io.IOException when the snapshot could not be read
+	 * @throws java.sql.SQLException when the snapshot holds duplicate orders
+	 */
+	public void loadSnapshot(File file) throws IOException, SQLException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (!SNAPSHOT_MAGIC.equals(in.readUTF())) throw new IOException(file + " is not a PizzaStore snapshot");
+			for (String[] user : readRows(in)) users.put(user[0], user);
+			for (String[] item : readRows(in)) items.put(item[0], item);
+			for (String[] store : readRows(in)) stores.put(Integer.parseInt(store[0].trim()), store);
+			promotions.addAll(readRows(in));
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Order order = new Order(readRow(in));
+				order.lines.addAll(readRows(in));
+				add(order);
+			}
+		} finally {
+			in.close();
+		}//end try
+	}//end loadSnapshot
+
+	private static void writeRows(DataOutputStream out, java.util.Collection<String[]> rows) throws IOException {
+		List<String[]> copy = new ArrayList<String[]>(rows);
+		out.writeInt(copy.size());
+		for (String[] row : copy) writeRow(out, row);
+	}
+
+	private static void writeRow(DataOutputStream out, String[] row) throws IOException {
+		out.writeInt(row.length);
+		for (String value : row) {
+			out.writeBoolean(value != null);
+			if (value != null) out.writeUTF(value);
+		}
+	}
+
+	private static List<String[]> readRows(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String[]> rows = new ArrayList<String[]>(count);
+		for (int i = 0; i < count; i++) rows.add(readRow(in));
+		return rows;
+	}
+
+	private static String[] readRow(DataInputStream in) throws IOException {
+		String[] row = new String[in.readInt()];
+		for (int i = 0; i < row.length; i++) {
+			row[i] = in.readBoolean() ? in.readUTF() : null;
+		}
+		return row;
+	}
+
+	private static int column(List<String> columns, String attribute) throws SQLException {
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i).equalsIgnoreCase(attribute)) return i;
+		}
+		throw new SQLException(String.format("column \"%s\" does not exist", attribute.toLowerCase()));
+	}
+
+	private static String[] with(String[] row, int column, String value) {
+		String[] copy = row.clone();
+		copy[column] = value;
+		return copy;
+	}
+
+	private static List<String> row(String[] row) {
+		return row == null ? null : new ArrayList<String>(Arrays.asList(row));
+	}
+
+	private static List<List<String>> rows(Iterable<String[]> rows) {
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (String[] row : rows) result.add(row(row));
+		return result;
+	}
+
+	private static SQLException duplicate(String constraint, String column, String value) {
+		return new SQLException(String.format("duplicate key value violates unique constraint \"%s\"\n  Detail: Key (%s)=(%s) already exists.", constraint, column, value));
+	}
+
+	private static SQLException missing(String constraint, String column, String value, String table) {
+		return new SQLException(String.format("insert or update violates foreign key constraint \"%s\"\n  Detail: Key (%s)=(%s) is not present in table \"%s\".", constraint, column, value, table));
+	}
+
+}//end MemoryStorage
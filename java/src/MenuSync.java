@@ -0,0 +1,245 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class brings the Items table in line with a CSV file in the format
+ * of data/items.csv.  The file is diffed against the live menu first, so the
+ * changes can be reviewed as a dry run, and then applied as three set based
+ * statements (one INSERT, one UPDATE, one DELETE) sent in a single round
+ * trip, which the server runs as one transaction.  With a shard map the
+ * statements are replicated to every shard like any other write to Items.
+ *
+ * The file is parsed the way COPY ... CSV reads it: quotes may start
+ * anywhere in a field and blanks around them are kept, so a row loaded by
+ * load_data.sql compares equal to the same row of the file.
+ *
+ */
+public class MenuSync {
+
+	/**
+	 * One row of Items
+	 */
+	public static class Item {
+		public final String itemName;
+		public final String ingredients;
+		public final String typeOfItem;
+		public final String price;
+		public final String description;
+
+		public Item(String itemName, String ingredients, String typeOfItem, String price, String description) {
+			this.itemName = itemName;
+			this.ingredients = ingredients;
+			this.typeOfItem = typeOfItem;
+			this.price = price;
+			this.description = description;
+		}
+
+		// the columns that differ from another version of the item
+		List<String> changes(Item other) {
+			List<String> changes = new ArrayList<String>();
+			if (!same(ingredients, other.ingredients)) changes.add(String.format("ingredients '%s' -> '%s'", ingredients, other.ingredients));
+			if (!same(typeOfItem, other.typeOfItem)) changes.add(String.format("typeOfItem '%s' -> '%s'", typeOfItem, other.typeOfItem));
+			if (PricingEngine.parseCents(price) != PricingEngine.parseCents(other.price)) changes.add(String.format("price %s -> %s", price.trim(), other.price.trim()));
+			if (!same(description, other.description)) changes.add(String.format("description '%s' -> '%s'", description, other.description));
+			return changes;
+		}
+	}//end Item
+
+	/**
+	 * The changes that turn the live menu into the file
+	 */
+	public static class Diff {
+		public final List<Item> inserts = new ArrayList<Item>();
+		public final List<Item> updates = new ArrayList<Item>();
+		public final List<String> deletes = new ArrayList<String>();
+		private final List<String> report = new ArrayList<String>();
+
+		public boolean isEmpty() {
+			return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+		}
+
+		/*
+		 * Prints one line per change, '+' added, '~' changed, '-' removed
+		 **/
+		public void report(PrintStream out) {
+			for (String line : report) out.println(line);
+			out.println(String.format("%d to add, %d to change, %d to remove", inserts.size(), updates.size(), deletes.size()));
+		}
+	}//end Diff
+
+	private final PizzaStore esql;
+
+	public MenuSync(PizzaStore esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Reads a menu file in the format of data/items.csv, header included
+	 *
+	 * @param file the menu file
+	 * @return the items of the file in file order
+	 * @throws java.io.IOException when the file could not be read or a row is malformed
+	 */
+	public static List<Item> readCsv(File file) throws IOException {
+		List<Item> items = new ArrayList<Item>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();	// header
+			int lineNumber = 1;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty()) continue;
+				List<String> fields = parseCsvLine(line);
+				if (fields.size() != 5 || fields.get(0) == null || fields.get(3) == null) {
+					throw new IOException(String.format("%s:%d: expected itemName, ingredients, typeOfItem, price, description", file, lineNumber));
+				}
+				items.add(new Item(fields.get(0), fields.get(1), fields.get(2), fields.get(3), fields.get(4)));
+			}//end while
+		} finally {
+			reader.close();
+		}//end try
+		return items;
+	}//end readCsv
+
+	/**
+	 * Compares the live menu with the wanted one
+	 *
+	 * @param wanted the items the menu should have
+	 * @param deleteMissing whether items missing from wanted are removed
+	 * @return the changes to apply
+	 * @throws java.sql.SQLException when the menu could not be read
+	 */
+	public Diff diff(List<Item> wanted, boolean deleteMissing) throws SQLException {
+		Map<String, Item> live = new LinkedHashMap<String, Item>();
+		for (List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT itemName, ingredients, typeOfItem, price, description FROM Items ORDER BY itemName")) {
+			live.put(row.get(0), new Item(row.get(0), row.get(1), row.get(2), row.get(3), row.get(4)));
+		}
+
+		Diff diff = new Diff();
+		for (Item item : wanted) {
+			Item current = live.remove(item.itemName);
+			if (current == null) {
+				diff.inserts.add(item);
+				diff.report.add(String.format("+ %s (%s, $%s)", item.itemName, item.typeOfItem.trim(), item.price.trim()));
+				continue;
+			}
+			List<String> changes = current.changes(item);
+			if (!changes.isEmpty()) {
+				diff.updates.add(item);
+				diff.report.add(String.format("~ %s: %s", item.itemName, String.join(", ", changes)));
+			}
+		}//end for
+		if (deleteMissing) {
+			for (String itemName : live.keySet()) {
+				diff.deletes.add(itemName);
+				diff.report.add(String.format("- %s (its lines in past orders are removed too)", itemName));
+			}
+		}
+		return diff;
+	}//end diff
+
+	/**
+	 * Applies a diff in one transaction, on every shard when the storage is
+	 * sharded
+	 *
+	 * @param diff the changes computed by diff
+	 * @throws java.sql.SQLException when any change failed, nothing is applied then
+	 */
+	public void apply(Diff diff) throws SQLException {
+		List<String> statements = new ArrayList<String>();
+		if (!diff.inserts.isEmpty()) {
+			StringBuilder insert = new StringBuilder("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ");
+			values(insert, diff.inserts);
+			statements.add(insert.toString());
+		}
+		if (!diff.updates.isEmpty()) {
+			StringBuilder update = new StringBuilder(
+					"UPDATE Items AS i SET ingredients = v.ingredients, typeOfItem = v.typeOfItem, price = v.price, description = v.description " +
+					"FROM (VALUES ");
+			values(update, diff.updates);
+			update.append(") AS v (itemName, ingredients, typeOfItem, price, description) WHERE i.itemName = v.itemName");
+			statements.add(update.toString());
+		}
+		if (!diff.deletes.isEmpty()) {
+			StringBuilder delete = new StringBuilder("DELETE FROM Items WHERE itemName IN (");
+			for (int i = 0; i < diff.deletes.size(); i++) {
+				if (i > 0) delete.append(", ");
+				delete.append(literal(diff.deletes.get(i)));
+			}
+			statements.add(delete.append(")").toString());
+		}
+		if (esql.getStorage() instanceof ShardedStorage) {
+			((ShardedStorage) esql.getStorage()).executeBatch(statements);
+		} else {
+			esql.executeBatch(statements);
+		}
+		esql.invalidatePricing();
+	}//end apply
+
+	private static void values(StringBuilder sql, List<Item> items) {
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+			if (i > 0) sql.append(", ");
+			sql.append('(').append(literal(item.itemName))
+					.append(", ").append(literal(item.ingredients))
+					.append(", ").append(literal(item.typeOfItem))
+					.append(", ").append(PricingEngine.formatCents(PricingEngine.parseCents(item.price))).append("::decimal(10,2)")
+					.append(", ").append(literal(item.description)).append("::text)");
+		}
+	}//end values
+
+	private static String literal(String value) {
+		if (value == null) return "NULL";
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	private static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/*
+	 * Splits one line the way COPY ... CSV does: a quote toggles quoting
+	 * wherever it appears, "" inside quotes is a quote, and an empty
+	 * unquoted field is NULL
+	 **/
+	static List<String> parseCsvLine(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		boolean wasQuoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+				wasQuoted = true;
+			} else if (c == ',') {
+				fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+				field.setLength(0);
+				wasQuoted = false;
+			} else {
+				field.append(c);
+			}
+		}//end for
+		fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+		return fields;
+	}//end parseCsvLine
+
+}//end MenuSync
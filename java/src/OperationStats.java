@@ -0,0 +1,61 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts the outcome of every logical operation (completed,
+ * timed out, cancelled, failed) together with the most database time a
+ * single run used, so the tail latency of each operation can be checked
+ * against its budget.
+ *
+ */
+public class OperationStats {
+
+	// slots of the per operation counter array
+	private static final int SLOTS = 5;
+	private static final int MAX_ELAPSED = 4;
+
+	private final Map<String, AtomicLongArray> counters = new ConcurrentHashMap<String, AtomicLongArray>();
+
+	/**
+	 * Records the end of an operation
+	 *
+	 * @param deadline the deadline the operation ran under
+	 */
+	public void record(Deadline deadline) {
+		AtomicLongArray slots = counters.computeIfAbsent(deadline.getOperation(), k -> new AtomicLongArray(SLOTS));
+		slots.incrementAndGet(deadline.getOutcome());
+		long elapsed = deadline.spentMillis();
+		long max;
+		do {
+			max = slots.get(MAX_ELAPSED);
+		} while (elapsed > max && !slots.compareAndSet(MAX_ELAPSED, max, elapsed));
+	}//end record
+
+	/*
+	 * Returns the number of runs of an operation that ended with the given outcome
+	 **/
+	public long count(String operation, int outcome) {
+		AtomicLongArray slots = counters.get(operation);
+		return slots == null ? 0 : slots.get(outcome);
+	}
+
+	public boolean isEmpty() {
+		return counters.isEmpty();
+	}
+
+	/*
+	 * Prints one line per operation to standard out
+	 **/
+	public void print() {
+		System.out.println("OPERATION\t\tCOMPLETED\tTIMED OUT\tCANCELLED\tFAILED\t\tMAX DB MS");
+		for (Map.Entry<String, AtomicLongArray> entry : new TreeMap<String, AtomicLongArray>(counters).entrySet()) {
+			AtomicLongArray slots = entry.getValue();
+			System.out.printf("%-20s\t%d\t\t%d\t\t%d\t\t%d\t\t%d\n", entry.getKey(),
+					slots.get(Deadline.COMPLETED), slots.get(Deadline.TIMED_OUT),
+					slots.get(Deadline.CANCELLED), slots.get(Deadline.FAILED), slots.get(MAX_ELAPSED));
+		}
+	}//end print
+
+}//end OperationStats
@@ -0,0 +1,433 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class moves cold months of FoodOrder and ItemsInOrder out of the
+ * database.  Every monthly partition older than the retention window is
+ * streamed through a cursor into a gzip compressed CSV file in the archive
+ * directory, and once the file is complete the partitions are detached and
+ * dropped.  The hot partitions and their indexes stay small while the full
+ * order history can still be read back from the archive files.
+ *
+ * Files are named after the partition, foodorder_y2014m05.csv.gz holds the
+ * orders of May 2014 and itemsinorder_y2014m05.csv.gz their line items.
+ * The orders are sorted by login and written as a series of gzip members,
+ * each starting with a new login, and foodorder_y2014m05.csv.gz.idx lists
+ * the offset and first login of every member.  The orders of a user are
+ * read by decompressing the one member that can hold them.
+ *
+ */
+public class OrderArchiver {
+
+	public static final int DEFAULT_RETENTION_MONTHS = 24;
+
+	// months of empty partitions kept ahead of the current one
+	private static final int MONTHS_AHEAD = 3;
+	private static final int FETCH_SIZE = 1000;
+	// rows of an indexed archive file after which a new gzip member is started
+	private static final int BLOCK_ROWS = 500;
+	// pg_advisory_lock key held while archiving, so runs never share files
+	private static final long ARCHIVE_LOCK = 0x4f72644172636856L;
+	private static final Pattern PARTITION = Pattern.compile("foodorder_y(\\d{4})m(\\d{2})");
+
+	private final PizzaStore esql;
+	private final File directory;
+
+	/**
+	 * Creates an archiver writing to the directory given by
+	 * -Dpizzastore.archive.dir (default "archive")
+	 *
+	 * @param esql the database to archive
+	 */
+	public OrderArchiver(PizzaStore esql) {
+		this(esql, defaultDirectory());
+	}
+
+	public OrderArchiver(PizzaStore esql, File directory) {
+		this.esql = esql;
+		this.directory = directory;
+	}
+
+	/*
+	 * Returns the directory given by -Dpizzastore.archive.dir (default
+	 * "archive")
+	 **/
+	public static File defaultDirectory() {
+		return new File(System.getProperty("pizzastore.archive.dir", "archive"));
+	}
+
+	/*
+	 * Returns the directory the archive files are written to
+	 **/
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Creates the partitions of this month and the MONTHS_AHEAD coming ones,
+	 * moving the orders that were placed into the default partition before
+	 * their month had one
+	 *
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when a partition could not be created
+	 */
+	public int createPartitions() throws SQLException {
+		LocalDate thisMonth = LocalDate.now().withDayOfMonth(1);
+		List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT create_order_partitions('%s', '%s')",
+				thisMonth, thisMonth.plusMonths(MONTHS_AHEAD + 1)));
+		return Integer.parseInt(result.get(0).get(0).trim());
+	}//end createPartitions
+
+	/**
+	 * Creates the partitions of the coming months and archives every month
+	 * that ended more than retentionMonths ago
+	 *
+	 * @param retentionMonths number of months kept in the database
+	 * @return the names of the archived partitions
+	 * @throws java.sql.SQLException when a partition could not be read or detached
+	 * @throws java.io.IOException when an archive file could not be written
+	 */
+	public List<String> run(int retentionMonths) throws SQLException, IOException {
+		LocalDate thisMonth = LocalDate.now().withDayOfMonth(1);
+		LocalDate cutoff = thisMonth.minusMonths(retentionMonths);
+		List<String> archived = new ArrayList<String>();
+
+		Connection connection = esql.openConnection();
+		try {
+			Statement stmt = connection.createStatement();
+			stmt.executeQuery("SELECT pg_advisory_lock(" + ARCHIVE_LOCK + ")").close();
+			recover(stmt);
+			stmt.executeQuery(String.format("SELECT create_order_partitions('%s', '%s')",
+					thisMonth, thisMonth.plusMonths(MONTHS_AHEAD + 1))).close();
+
+			List<String> partitions = new ArrayList<String>();
+			ResultSet rs = stmt.executeQuery(
+					"SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+					"WHERE i.inhparent = 'foodorder'::regclass ORDER BY c.relname");
+			while (rs.next()) partitions.add(rs.getString(1));
+			rs.close();
+			stmt.close();
+
+			for (String partition : partitions) {
+				Matcher month = PARTITION.matcher(partition);
+				if (!month.matches()) continue;
+				LocalDate start = LocalDate.of(Integer.parseInt(month.group(1)), Integer.parseInt(month.group(2)), 1);
+				if (!start.plusMonths(1).isAfter(cutoff)) {
+					archive(connection, partition.substring("foodorder_".length()));
+					archived.add(partition);
+				}
+			}//end for
+		} finally {
+			// closing the session releases the advisory lock
+			connection.close();
+		}//end try
+		return archived;
+	}//end run
+
+	/*
+	 * Finishes the archiving of a month left behind by a run that stopped
+	 * after its transaction: a temporary file whose partition was dropped
+	 * holds the only copy of its rows and is renamed, one whose partition
+	 * still exists is a leftover of a rolled back run and is deleted.
+	 **/
+	private void recover(Statement stmt) throws SQLException, IOException {
+		String[] names = directory.list();
+		if (names == null) return;
+		Arrays.sort(names);
+		for (String name : names) {
+			if (!name.endsWith(".tmp")) continue;
+			String partition = partitionOf(name);
+			if (partition == null) continue;
+			File temporary = new File(directory, name);
+			if (partitionExists(stmt, partition)) {
+				if (!temporary.delete()) throw new IOException("Cannot delete " + temporary);
+			} else {
+				publish(temporary);
+			}
+		}//end for
+	}//end recover
+
+	private static boolean partitionExists(Statement stmt, String partition) throws SQLException {
+		ResultSet rs = stmt.executeQuery(String.format("SELECT to_regclass('%s') IS NOT NULL", partition));
+		rs.next();
+		boolean exists = rs.getBoolean(1);
+		rs.close();
+		return exists;
+	}
+
+	// foodorder_y2014m05.csv.gz.idx.tmp -> foodorder_y2014m05, null for other files
+	private static String partitionOf(String name) {
+		int end = name.indexOf(".csv.gz");
+		if (end < 0) return null;
+		String partition = name.substring(0, end);
+		return partition.matches("(foodorder|itemsinorder)_y\\d{4}m\\d{2}") ? partition : null;
+	}
+
+	/*
+	 * Archives the FoodOrder and ItemsInOrder partitions of one month.  Both
+	 * files are written under a temporary name in the same transaction that
+	 * detaches the partitions, and renamed once that transaction committed,
+	 * so an order is never visible in both places.
+	 **/
+	private void archive(Connection connection, String suffix) throws SQLException, IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create archive directory " + directory);
+		}
+		File orders;
+		File index;
+		File items;
+		connection.setAutoCommit(false);
+		try {
+			// byte order, the index is searched with String.compareTo
+			orders = export(connection, "foodorder_" + suffix,
+					"SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM foodorder_" + suffix +
+					" ORDER BY login COLLATE \"C\", orderTimestamp DESC", 2);
+			index = new File(directory, orders.getName().replace(".csv.gz.tmp", ".csv.gz.idx.tmp"));
+			items = export(connection, "itemsinorder_" + suffix,
+					"SELECT orderID, orderTimestamp, itemName, quantity FROM itemsinorder_" + suffix, 0);
+
+			Statement stmt = connection.createStatement();
+			// line items first, they reference the orders.  A detached
+			// partition keeps its foreign key, so the line items are dropped
+			// outright before the orders they point to are detached
+			stmt.executeUpdate("DROP TABLE itemsinorder_" + suffix);
+			stmt.executeUpdate("ALTER TABLE FoodOrder DETACH PARTITION foodorder_" + suffix);
+			stmt.executeUpdate("DROP TABLE foodorder_" + suffix);
+			stmt.close();
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} catch (IOException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}//end try
+		// the index last, a file without one is read whole
+		publish(orders);
+		publish(items);
+		publish(index);
+	}//end archive
+
+	/*
+	 * Streams a query into <name>.csv.gz.tmp, FETCH_SIZE rows at a time.
+	 * When keyColumn is not 0 the rows are sorted on that column and a new
+	 * gzip member is started at the first new key after BLOCK_ROWS rows, its
+	 * offset and key are written to <name>.csv.gz.idx.tmp.
+	 **/
+	private File export(Connection connection, String name, String query, int keyColumn) throws SQLException, IOException {
+		File file = new File(directory, name + ".csv.gz.tmp");
+		Statement stmt = connection.createStatement();
+		FileOutputStream stream = new FileOutputStream(file);
+		OutputStream buffered = new BufferedOutputStream(stream);
+		Writer index = keyColumn == 0 ? null : new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(directory, name + ".csv.gz.idx.tmp")), "UTF-8"));
+		GZIPOutputStream member = null;
+		Writer out = null;
+		try {
+			stmt.executeUpdate("DECLARE archive_cursor NO SCROLL CURSOR FOR " + query);
+			String lastKey = null;
+			int blockRows = 0;
+			while (true) {
+				ResultSet rs = stmt.executeQuery("FETCH " + FETCH_SIZE + " FROM archive_cursor");
+				ResultSetMetaData rsmd = rs.getMetaData();
+				int numCol = rsmd.getColumnCount();
+				int rows = 0;
+				while (rs.next()) {
+					String key = keyColumn == 0 ? null : rs.getString(keyColumn);
+					if (out == null || (index != null && blockRows >= BLOCK_ROWS && !key.equals(lastKey))) {
+						if (out != null) {
+							out.flush();
+							member.finish();
+						}
+						buffered.flush();
+						if (index != null) index.write(stream.getChannel().position() + "," + quote(key) + "\n");
+						member = startMember(buffered);
+						out = new BufferedWriter(new OutputStreamWriter(member, "UTF-8"));
+						blockRows = 0;
+					}//end if
+					for (int i = 1; i <= numCol; i++) {
+						if (i > 1) out.write(',');
+						out.write(quote(rs.getString(i)));
+					}
+					out.write('\n');
+					lastKey = key;
+					blockRows++;
+					rows++;
+				}//end while
+				rs.close();
+				if (rows < FETCH_SIZE) break;
+			}//end while
+			stmt.executeUpdate("CLOSE archive_cursor");
+			if (out == null) {
+				// an empty month is still a valid gzip file
+				member = startMember(buffered);
+			} else {
+				out.flush();
+			}
+			member.finish();
+		} finally {
+			buffered.close();
+			if (index != null) index.close();
+			stmt.close();
+		}//end try
+		return file;
+	}//end export
+
+	/*
+	 * Starts a gzip member on out, finishing the member leaves out open
+	 **/
+	private static GZIPOutputStream startMember(final OutputStream out) throws IOException {
+		return new GZIPOutputStream(new OutputStream() {
+			public void write(int b) throws IOException {
+				out.write(b);
+			}
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+		});
+	}//end startMember
+
+	private static void publish(File temporary) throws IOException {
+		String name = temporary.getName();
+		File target = new File(temporary.getParentFile(), name.substring(0, name.length() - ".tmp".length()));
+		if (!temporary.renameTo(target)) throw new IOException("Cannot rename " + temporary + " to " + target);
+	}
+
+	/**
+	 * Reads the archived orders of a user, newest month first.  The rows have
+	 * the columns of FoodOrder.  A file left under its temporary name by a
+	 * run that stopped after dropping its partition is read too.
+	 *
+	 * @param login the user whose orders are read
+	 * @return the archived orders
+	 * @throws java.sql.SQLException when the partitions could not be listed
+	 * @throws java.io.IOException when an archive file could not be read
+	 */
+	public List<List<String>> readOrders(String login) throws SQLException, IOException {
+		List<List<String>> result = new ArrayList<List<String>>();
+		String[] names = directory.list();
+		if (names == null) return result;
+		Arrays.sort(names, Collections.reverseOrder());
+		for (String name : names) {
+			if (!name.startsWith("foodorder_")) continue;
+			File file = new File(directory, name);
+			if (name.endsWith(".csv.gz")) {
+				readOrders(file, new File(directory, name + ".idx"), login, result);
+			} else if (name.endsWith(".csv.gz.tmp") && partitionOf(name) != null
+					&& esql.executeQuery(String.format("SELECT 1 WHERE to_regclass('%s') IS NULL", partitionOf(name))) > 0) {
+				try {
+					readOrders(file, null, login, result);
+				} catch (FileNotFoundException e) {
+					// renamed since the directory was listed
+					readOrders(new File(directory, name.substring(0, name.length() - ".tmp".length())), null, login, result);
+				}//end try
+			}//end if
+		}//end for
+		return result;
+	}//end readOrders
+
+	/*
+	 * Adds the orders of a user in one archive file to result.  With an
+	 * index only the member starting at the last key not after login is
+	 * read, and only up to the first row of another user.
+	 **/
+	private static void readOrders(File file, File index, String login, List<List<String>> result) throws IOException {
+		long offset = 0;
+		boolean sorted = false;
+		if (index != null && index.exists()) {
+			offset = -1;
+			BufferedReader entries = new BufferedReader(new FileReader(index));
+			try {
+				String line;
+				while ((line = entries.readLine()) != null) {
+					List<String> entry = unquote(line);
+					if (entry.get(1).compareTo(login) > 0) break;
+					offset = Long.parseLong(entry.get(0));
+				}
+			} finally {
+				entries.close();
+			}//end try
+			// every login in the file sorts after this one
+			if (offset < 0) return;
+			sorted = true;
+		}//end if
+
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			stream.getChannel().position(offset);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(stream), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				List<String> order = unquote(line);
+				int compared = order.get(1).compareTo(login);
+				if (compared == 0) result.add(order);
+				else if (sorted && compared > 0) break;
+			}
+		} finally {
+			stream.close();
+		}//end try
+	}//end readOrders
+
+	private static String quote(String value) {
+		if (value == null) return "";
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	// splits a line written by quote, fields may be quoted with "" escapes
+	static List<String> unquote(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}//end for
+		fields.add(field.toString());
+		return fields;
+	}//end unquote
+
+}//end OrderArchiver
@@ -0,0 +1,94 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class hands out FoodOrder ids from blocks reserved ahead of time on
+ * the orderID sequence, so an order and its line items can be written
+ * without first waiting for INSERT ... RETURNING orderID.
+ *
+ * A block is reserved with a single round trip that draws blockSize values
+ * from the sequence.  Every value drawn from a sequence is unique, so several
+ * application instances (and plain inserts relying on the SERIAL default)
+ * never collide, whatever block size each of them uses.  Within a block the
+ * ids are handed out lock-free, only the refill of an exhausted block is
+ * serialized.
+ *
+ */
+public class OrderIdAllocator {
+
+	public static final String ORDER_SEQUENCE = "foodorder_orderid_seq";
+	public static final int DEFAULT_BLOCK_SIZE = 50;
+
+	// one reserved range of ids, consumed front to back
+	private static class Block {
+		final int[] ids;
+		final AtomicInteger next = new AtomicInteger();
+
+		Block(int[] ids) {
+			this.ids = ids;
+		}
+	}//end Block
+
+	private final PizzaStore esql;
+	private final String sequence;
+	private final int blockSize;
+	private final AtomicReference<Block> current = new AtomicReference<Block>(new Block(new int[0]));
+
+	/**
+	 * Creates an allocator for the FoodOrder sequence.  The block size can be
+	 * tuned with -Dpizzastore.orderid.block=<n>.
+	 *
+	 * @param esql the database connection used to reserve blocks
+	 */
+	public OrderIdAllocator(PizzaStore esql) {
+		this(esql, ORDER_SEQUENCE, Integer.getInteger("pizzastore.orderid.block", DEFAULT_BLOCK_SIZE));
+	}
+
+	/**
+	 * Creates an allocator
+	 *
+	 * @param esql the database connection used to reserve blocks
+	 * @param sequence name of the DB sequence
+	 * @param blockSize number of ids reserved per round trip
+	 */
+	public OrderIdAllocator(PizzaStore esql, String sequence, int blockSize) {
+		if (blockSize < 1) throw new IllegalArgumentException("block size must be positive: " + blockSize);
+		this.esql = esql;
+		this.sequence = sequence;
+		this.blockSize = blockSize;
+	}//end OrderIdAllocator
+
+	/**
+	 * Returns an order id that no other caller, in this or any other
+	 * instance, will ever receive
+	 *
+	 * @return a fresh order id
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public int nextId() throws SQLException {
+		while (true) {
+			Block block = current.get();
+			int index = block.next.getAndIncrement();
+			if (index < block.ids.length) return block.ids[index];
+			refill(block);
+		}
+	}//end nextId
+
+	/*
+	 * Replaces an exhausted block.  Callers that raced on the same exhausted
+	 * block find it already replaced and retry on the new one.
+	 **/
+	private synchronized void refill(Block exhausted) throws SQLException {
+		if (current.get() != exhausted) return;
+		List<List<String>> result = esql.executeQueryAndReturnResult(String.format(
+				"SELECT nextval('%s') FROM generate_series(1, %d)", sequence, blockSize));
+		int[] ids = new int[result.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = Integer.parseInt(result.get(i).get(0));
+		}
+		current.set(new Block(ids));
+	}//end refill
+
+}//end OrderIdAllocator
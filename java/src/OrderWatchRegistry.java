@@ -0,0 +1,137 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class lets clients wait for the status of an order to change instead
+ * of polling viewOrderInfo.  A watch is a subscription kept in a per order
+ * list until it is cancelled, no thread waits on behalf of a watcher, so
+ * hundreds of thousands of watches cost only their queues.
+ *
+ * Status changes are published by this process when it updates an order
+ * and, through the change feed, when another PizzaStore process does.  Every
+ * status published while a watch is registered is queued on it, so changes
+ * that follow each other closely are all seen.  A watch returns null when
+ * changes may have been missed and the watcher should read the order again.
+ *
+ */
+public class OrderWatchRegistry {
+
+	/**
+	 * The statuses published for one watcher that it has not taken yet
+	 */
+	public static class Watch {
+		final int orderID;
+		private final ArrayDeque<String> pending = new ArrayDeque<String>(2);
+		private boolean missed = false;
+
+		Watch(int orderID) {
+			this.orderID = orderID;
+		}
+
+		synchronized void offer(String status) {
+			pending.add(status);
+			notifyAll();
+		}
+
+		synchronized void miss() {
+			// a read of the order replaces whatever was queued
+			pending.clear();
+			missed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Takes the next published status, waiting for one
+		 *
+		 * @param millis how long to wait at most
+		 * @return the status, or null when changes may have been missed
+		 * @throws java.util.concurrent.TimeoutException when nothing was published in time
+		 * @throws java.lang.InterruptedException when the wait was interrupted
+		 */
+		public synchronized String next(long millis) throws TimeoutException, InterruptedException {
+			long until = System.currentTimeMillis() + millis;
+			while (pending.isEmpty() && !missed) {
+				long left = until - System.currentTimeMillis();
+				if (left <= 0) throw new TimeoutException();
+				wait(left);
+			}
+			if (missed) {
+				missed = false;
+				return null;
+			}
+			return pending.poll();
+		}//end next
+	}//end Watch
+
+	private final Map<Integer, List<Watch>> watches = new ConcurrentHashMap<Integer, List<Watch>>();
+
+	/**
+	 * Registers interest in the status changes of an order.  Register before
+	 * reading the current status, so a change in between is not lost.
+	 *
+	 * @param orderID the order to watch
+	 * @return the watch receiving every status published from now on
+	 */
+	public Watch watch(int orderID) {
+		final Watch watch = new Watch(orderID);
+		watches.compute(orderID, (id, list) -> {
+			if (list == null) list = new ArrayList<Watch>(2);
+			list.add(watch);
+			return list;
+		});
+		return watch;
+	}//end watch
+
+	/*
+	 * Drops a watch that is no longer waited for
+	 **/
+	public void cancel(final Watch watch) {
+		watches.computeIfPresent(watch.orderID, (id, list) -> {
+			list.remove(watch);
+			return list.isEmpty() ? null : list;
+		});
+	}//end cancel
+
+	/**
+	 * Queues the new status of an order on every watch of it
+	 *
+	 * @param orderID the changed order
+	 * @param status the new status, null when it is unknown
+	 */
+	public void publish(int orderID, String status) {
+		// orderStatus is char(50), Postgres pads it with blanks
+		final String trimmed = status == null ? null : status.trim();
+		watches.computeIfPresent(orderID, (id, list) -> {
+			for (Watch watch : list) {
+				if (trimmed == null) watch.miss();
+				else watch.offer(trimmed);
+			}
+			return list;
+		});
+	}//end publish
+
+	/*
+	 * Tells every watch that the changes since it was registered may have
+	 * been missed
+	 **/
+	public void resync() {
+		for (Integer orderID : new ArrayList<Integer>(watches.keySet())) {
+			watches.computeIfPresent(orderID, (id, list) -> {
+				for (Watch watch : list) watch.miss();
+				return list;
+			});
+		}
+	}//end resync
+
+	/*
+	 * Returns the number of orders being watched
+	 **/
+	public int size() {
+		return watches.size();
+	}
+
+}//end OrderWatchRegistry
@@ -11,11 +11,7 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.PreparedStatement;
 import java.io.File;
@@ -24,17 +20,84 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.lang.Math;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Map;
 /**
  * This class defines a simple embedded SQL utility class that is designed to
  * work with PostgreSQL JDBC drivers.
  *
  */
-public class PizzaStore {
+public class PizzaStore extends SqlSession {
 
-	// reference to physical database connection.
-	private Connection _connection = null;
+	private int _operationDepth = 0;
+	// false while an explicit transaction is open, see setAutoCommit
+	private boolean _autoCommit = true;
+	// cache and queue updates of the open transaction, run once it committed
+	private final List<Runnable> _afterCommit = new ArrayList<Runnable>();
+
+	// outcome counters of every logical operation run on this connection
+	private final OperationStats _stats = new OperationStats();
+
+	// hands out FoodOrder ids reserved in blocks from the orderID sequence
+	private final OrderIdAllocator _orderIds = new OrderIdAllocator(this);
+
+	// menu and promotions compiled for pricing, loaded on first order
+	private PricingEngine _pricing = null;
+
+	// per store queues of incomplete orders waiting for a driver
+	private final DispatchQueue _dispatch = new DispatchQueue(this);
+
+	// changes to Items, Users and Store made by any PizzaStore process
+	private final ChangeFeed _changes = new ChangeFeed(this);
+
+	// clients waiting for the status of an order to change
+	private final OrderWatchRegistry _watches = new OrderWatchRegistry();
+
+	// last orders of the users active in this process
+	private final RecentOrdersCache _recent = new RecentOrdersCache();
+
+	// password hashing and the cache of recent successful logins, trusted
+	// while the change feed reports the password changes of other processes
+	private final Authenticator _auth = new Authenticator(() -> !hasConnection() || _changes.isRunning());
+
+	// hourly demand model of every store and item, trained on first use
+	private final DemandForecaster _forecaster = new DemandForecaster();
+
+	// where the operations read and write their rows, Postgres unless an
+	// in-memory store or a shard map was given
+	private Storage _storage = new JdbcStorage(this);
+
+	// snapshot file the in-memory store is saved to on cleanup, null for none
+	private File _snapshot = null;
+
+	// runs the asynchronous reads, every worker thread has a connection of
+	// its own
+	private ExecutorService _async = null;
+	private final ThreadLocal<SqlSession> _worker = new ThreadLocal<SqlSession>();
+	private final List<SqlSession> _workers = new CopyOnWriteArrayList<SqlSession>();
+
+	/**
+	 * A read run against the storage by readAsync
+	 */
+	public interface StorageRead<T> {
+		T run(Storage storage) throws SQLException;
+	}
+
+	// a call run on the connection of a worker thread
+	private interface WorkerCall<T> {
+		T run(SqlSession worker) throws SQLException;
+	}
 
 	// handling the keyboard inputs through a BufferedReader
 	// This variable can be global for convenience.
@@ -59,7 +122,7 @@ public class PizzaStore {
 			System.out.println ("Connection URL: " + url + "\n");
 
 			// obtain a physical connection
-			this._connection = DriverManager.getConnection(url, user, passwd);
+			this.connect(url, user, passwd);
 			System.out.println("Done");
 		}catch (Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -69,157 +132,479 @@ public class PizzaStore {
 	}//end PizzaStore
 
 	/**
-	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * Creates a PizzaStore without a database connection that keeps all of
+	 * its data in memory.  Operations that need Postgres itself (dispatch,
+	 * archiving, menu sync, change notifications) report an error.
+	 *
+	 * @param storage the in-memory store
+	 * @param snapshot file the store is saved to on cleanup, null to keep nothing
+	 */
+	public PizzaStore(MemoryStorage storage, File snapshot) {
+		this._storage = storage;
+		this._snapshot = snapshot;
+	}//end PizzaStore
+
+	/**
+	 * Method to return the storage the operations read and write
+	 *
+	 * @return the storage of this instance
+	 */
+	public Storage getStorage() {
+		return this._storage;
+	}
+
+	/**
+	 * Method to return the allocator of FoodOrder ids
+	 *
+	 * @return the order id allocator shared by this connection
+	 */
+	public OrderIdAllocator getOrderIdAllocator() {
+		return this._orderIds;
+	}
+
+	/**
+	 * Method to return the pricing engine, compiling the menu and the
+	 * promotions on first use
 	 *
-	 * @param sql the input SQL string
-	 * @throws java.sql.SQLException when update failed
+	 * @return the compiled pricing engine
+	 * @throws java.sql.SQLException when the menu or the promotions could not be read
 	 */
-	public void executeUpdate (String sql) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public PricingEngine getPricingEngine() throws SQLException {
+		return this.getPricingEngine(this._storage);
+	}
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	/**
+	 * Method to return the pricing engine, compiling it from the given
+	 * storage on first use
+	 *
+	 * @param storage where the menu and the promotions are read
+	 * @return the compiled pricing engine
+	 * @throws java.sql.SQLException when the menu or the promotions could not be read
+	 */
+	public synchronized PricingEngine getPricingEngine(Storage storage) throws SQLException {
+		if (this._pricing == null) {
+			this._pricing = PricingEngine.load(storage);
+		}//end if
+		return this._pricing;
+	}
 
-		// close the instruction
-		stmt.close ();
-	}//end executeUpdate
+	/**
+	 * Method to drop the compiled pricing engine after the menu or the
+	 * promotions changed, the next order compiles them again
+	 */
+	public synchronized void invalidatePricing() {
+		this._pricing = null;
+	}
 
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * Method to return the driver dispatch queues of a store.  They belong
+	 * to the database holding its orders, the owning shard when the storage
+	 * is sharded.
 	 *
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 ** obtains the metadata object for the returned result set.  The metadata
-		 ** contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-
-		// iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.printf(rsmd.getColumnName(i) + "\t\t");
-				}
-				System.out.println();
-				outputHeader = false;
+	 * @param storeID the store
+	 * @return the dispatch queues holding the store's orders
+	 */
+	public DispatchQueue getDispatchQueue(int storeID) {
+		if (this._storage instanceof ShardedStorage) {
+			ShardedStorage sharded = (ShardedStorage) this._storage;
+			return sharded.database(sharded.shardOf(storeID))._dispatch;
+		}//end if
+		return this._dispatch;
+	}
+
+	/**
+	 * Method to return the driver dispatch queues of every database, one
+	 * per shard when the storage is sharded
+	 *
+	 * @return the dispatch queues, the ones of this connection first
+	 */
+	public List<DispatchQueue> getDispatchQueues() {
+		List<DispatchQueue> queues = new ArrayList<DispatchQueue>();
+		for (PizzaStore database : databases()) queues.add(database._dispatch);
+		return queues;
+	}
+
+	/**
+	 * Method to return an order archiver for every database.  The orders of
+	 * this database are archived to -Dpizzastore.archive.dir, those of
+	 * another shard to the subdirectory named after it.
+	 *
+	 * @return the archivers, the one of this connection first
+	 */
+	public List<OrderArchiver> getOrderArchivers() {
+		File directory = OrderArchiver.defaultDirectory();
+		List<OrderArchiver> archivers = new ArrayList<OrderArchiver>();
+		archivers.add(new OrderArchiver(this, directory));
+		if (this._storage instanceof ShardedStorage) {
+			ShardedStorage sharded = (ShardedStorage) this._storage;
+			for (int i = 1; i < sharded.shardCount(); i++) {
+				archivers.add(new OrderArchiver(sharded.database(i), new File(directory, sharded.shardName(i))));
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.printf(rs.getString (i) + "\t\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close();
-		return rowCount;
-	}//end executeQuery
-
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+		}//end if
+		return archivers;
+	}
+
+	/*
+	 * Returns this database and, when the storage is sharded, the other
+	 * shards
+	 **/
+	private List<PizzaStore> databases() {
+		List<PizzaStore> databases = new ArrayList<PizzaStore>();
+		databases.add(this);
+		if (this._storage instanceof ShardedStorage) {
+			ShardedStorage sharded = (ShardedStorage) this._storage;
+			for (int i = 1; i < sharded.shardCount(); i++) databases.add(sharded.database(i));
+		}//end if
+		return databases;
+	}
+
+	/**
+	 * Method to switch the connection between auto-commit and explicit
+	 * transactions
+	 *
+	 * @param autoCommit true to commit every statement on its own
+	 * @throws java.sql.SQLException when the mode could not be changed
+	 */
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		super.setAutoCommit (autoCommit);
+		this._autoCommit = autoCommit;
+	}
+
+	/**
+	 * Method to commit the open transaction, then run the actions registered
+	 * with afterCommit.  If the commit fails they are dropped.
+	 *
+	 * @throws java.sql.SQLException when the commit failed
+	 */
+	public void commit() throws SQLException {
+		List<Runnable> actions = new ArrayList<Runnable>(this._afterCommit);
+		this._afterCommit.clear();
+		super.commit ();
+		for (Runnable action : actions) action.run();
+	}
+
+	/**
+	 * Method to roll back the open transaction, the actions registered with
+	 * afterCommit are dropped
+	 *
+	 * @throws java.sql.SQLException when the rollback failed
+	 */
+	public void rollback() throws SQLException {
+		this._afterCommit.clear();
+		super.rollback ();
+	}
+
+	/**
+	 * Method to run an update of the caches or queues of this process once
+	 * the rows it reflects are committed: at once outside a transaction, on
+	 * commit inside one.  Other threads never see rows that may still be
+	 * rolled back.
+	 *
+	 * @param action the update
+	 */
+	public void afterCommit(Runnable action) {
+		if (this._autoCommit) {
+			action.run();
+		} else {
+			this._afterCommit.add(action);
+		}
+	}
+
+	/**
+	 * Method to return the number of actions waiting for the commit, to be
+	 * given to dropAfterCommit when rolling back to a savepoint taken now
+	 *
+	 * @return the number of actions registered so far
+	 */
+	public int afterCommitCount() {
+		return this._afterCommit.size();
+	}
+
+	/**
+	 * Method to drop the actions registered since afterCommitCount returned
+	 * count
+	 *
+	 * @param count the number of actions kept
+	 */
+	public void dropAfterCommit(int count) {
+		while (this._afterCommit.size() > count) {
+			this._afterCommit.remove(this._afterCommit.size() - 1);
+		}
+	}
+
+	/**
+	 * Method to start a logical operation (placeOrder, viewOrderInfo, ...).
+	 * Every statement issued until the matching endOperation runs with what
+	 * is left of the operation's time budget, see Deadline.budgetFor.
+	 * Operations started while another one is active join the outer one.
+	 *
+	 * @param operation name of the operation, null to run without a deadline
+	 */
+	public void beginOperation(String operation) {
+		if (operation == null) return;
+		if (this._operationDepth++ == 0) {
+			this.setDeadline(new Deadline(operation, Deadline.budgetFor(operation)));
+		}
+	}//end beginOperation
+
+	/**
+	 * Method to end the logical operation started by beginOperation.  The
+	 * outcome of the operation is counted and the server side statement
+	 * timeout is cleared again.
+	 *
+	 * @param operation name of the operation given to beginOperation
+	 */
+	public void endOperation(String operation) {
+		if (operation == null || this._operationDepth == 0) return;
+		if (--this._operationDepth > 0) return;
+
+		this._stats.record(this.getDeadline());
+		this.setDeadline(null);
+		this.clearStatementTimeout();
+	}//end endOperation
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) on the
+	 * async executor.  The query runs on the connection of a worker thread
+	 * under the deadline of the current operation, so several queries of one
+	 * operation can run at the same time.
 	 *
 	 * @param query the input query string
-	 * @return the query result as a list of records
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 ** obtains the metadata object for the returned result set.  The metadata
-		 ** contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-
-		// iterates through the result set and saves the data returned by the query.
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>();
-		while (rs.next()){
-			List<String> record = new ArrayList<String>();
-			for (int i=1; i<=numCol; ++i)
-				record.add(rs.getString (i));
-			result.add(record);
-		}//end while
-		stmt.close ();
+	 * @return a future of the query result as a list of records
+	 */
+	public CompletableFuture<List<List<String>>> executeQueryAndReturnResultAsync (final String query) {
+		return this.onWorker(worker -> worker.executeQueryAndReturnResult(query));
+	}
+
+	/**
+	 * Method to run a read against the storage on the async executor.  On
+	 * Postgres the read runs like executeQueryAndReturnResultAsync.  The
+	 * in-memory store answers at memory speed and a sharded store fans out
+	 * on its own, for them the read runs right away on the calling thread.
+	 *
+	 * @param read the read to run
+	 * @return a future of the result of the read
+	 */
+	public <T> CompletableFuture<T> readAsync (final StorageRead<T> read) {
+		if (this._storage instanceof JdbcStorage) {
+			return this.onWorker(worker -> read.run(new JdbcStorage(worker, this._orderIds)));
+		}//end if
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			result.complete(read.run(this._storage));
+		}catch (SQLException e){
+			result.completeExceptionally(e);
+		}//end try
 		return result;
-	}//end executeQueryAndReturnResult
+	}//end readAsync
 
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
+	 * Method to wait for an async read, failures are reported as the
+	 * SQLException the read threw
 	 *
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @param future the future returned by readAsync or executeQueryAndReturnResultAsync
+	 * @return the result of the read
+	 * @throws java.sql.SQLException when the read failed
 	 */
-	public int executeQuery (String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public static <T> T await (CompletableFuture<T> future) throws SQLException {
+		try {
+			return future.get();
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			throw new SQLException(String.valueOf(cause));
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a query");
+		}//end try
+	}//end await
+
+	private <T> CompletableFuture<T> onWorker(final WorkerCall<T> call) {
+		final Deadline deadline = this.getDeadline();
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				SqlSession worker = worker();
+				// the worker charges the operation of the caller
+				worker.setDeadline(deadline);
+				try {
+					return call.run(worker);
+				} finally {
+					// the timeout left on the worker's session is replaced
+					// by its next statement if it does not fit
+					worker.setDeadline(null);
+				}//end try
+			}catch (SQLException e){
+				throw new CompletionException(e);
+			}//end try
+		}, this.asyncExecutor());
+	}//end onWorker
+
+	// the session of the calling worker thread, connected on first use
+	private SqlSession worker() throws SQLException {
+		SqlSession worker = this._worker.get();
+		if (worker == null) {
+			worker = new SqlSession(this);
+			this._worker.set(worker);
+			this._workers.add(worker);
+		}//end if
+		return worker;
+	}//end worker
 
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/*
+	 * Creates the async executor on first use.  The number of worker threads
+	 * can be tuned with -Dpizzastore.async.threads=<threads>.
+	 **/
+	private synchronized ExecutorService asyncExecutor() {
+		if (this._async == null) {
+			int threads = Math.max(1, Integer.getInteger("pizzastore.async.threads", 4));
+			this._async = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "async-query");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}//end if
+		return this._async;
+	}//end asyncExecutor
 
-		int rowCount = 0;
+	/**
+	 * Method to return the outcome counters of the operations run so far
+	 *
+	 * @return the operation statistics
+	 */
+	public OperationStats getOperationStats() {
+		return this._stats;
+	}
 
-		// iterates through the result set and count nuber of results.
-		while (rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to return the feed of changes made by other processes
+	 *
+	 * @return the change feed of this connection
+	 */
+	public ChangeFeed getChangeFeed() {
+		return this._changes;
 	}
 
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current
-	 * value of sequence used for autogenerated keys
+	 * Method to return the watches on order status changes
 	 *
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @return the order watch registry of this instance
 	 */
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
+	public OrderWatchRegistry getOrderWatches() {
+		return this._watches;
+	}
 
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next())
-			return rs.getInt(1);
-		return -1;
+	/**
+	 * Method to return the cache of the users' last orders
+	 *
+	 * @return the recent orders cache of this instance
+	 */
+	public RecentOrdersCache getRecentOrders() {
+		return this._recent;
 	}
 
+	/**
+	 * Method to return the authenticator checking the passwords
+	 *
+	 * @return the authenticator of this instance
+	 */
+	public Authenticator getAuthenticator() {
+		return this._auth;
+	}
+
+	/**
+	 * Method to return the demand forecaster of this process
+	 *
+	 * @return the forecaster of this instance
+	 */
+	public DemandForecaster getForecaster() {
+		return this._forecaster;
+	}
+
+	/**
+	 * Method to tell the watchers and the caches of this process that the
+	 * status of an order changed
+	 *
+	 * @param orderID the changed order
+	 * @param status the new status
+	 */
+	public void orderStatusChanged(int orderID, String status) {
+		this._recent.statusChanged(orderID, status);
+		this._watches.publish(orderID, status);
+	}
+
+	/**
+	 * Method to start listening to changes made by other processes.  Cached
+	 * state of this process is dropped when the tables it was built from
+	 * change, and order watchers are told about status changes.  Orders
+	 * live on the shard of their store, so every shard's FoodOrder changes
+	 * are listened to on that shard and drive its dispatch queues.
+	 */
+	public void startChangeFeed() {
+		ChangeFeed.Handler pricing = new ChangeFeed.Handler() {
+			public void onChange(ChangeFeed.Event event) {
+				invalidatePricing();
+			}
+			public void resync() {
+				invalidatePricing();
+			}
+		};
+		this._changes.register("Items", pricing);
+		this._changes.register("Users", new ChangeFeed.Handler() {
+			public void onChange(ChangeFeed.Event event) {
+				_auth.evict(event.key);
+			}
+			public void resync() {
+				_auth.clear();
+			}
+		});
+		for (final PizzaStore database : databases()) {
+			database._changes.register("FoodOrder", new ChangeFeed.Handler() {
+				public void onChange(ChangeFeed.Event event) {
+					int orderID = Integer.parseInt(event.key);
+					if (DispatchQueue.INCOMPLETE.equals(event.value)) {
+						database._dispatch.requeue(orderID);
+					} else {
+						database._dispatch.remove(orderID);
+					}
+					// a new order has no watchers and is not cached yet
+					if (event.op != ChangeFeed.INSERT) orderStatusChanged(orderID, event.value);
+				}
+				public void resync() {
+					_recent.clear();
+					_watches.resync();
+					database._dispatch.resync();
+				}
+			});
+			try {
+				database._changes.start();
+			}catch (SQLException e){
+				System.err.println("Change notifications are disabled: " + e.getMessage());
+			}//end try
+		}//end for
+	}//end startChangeFeed
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-			// ignored.
-		}//end try
+		this._changes.stop();
+		synchronized (this) {
+			if (this._async != null) this._async.shutdownNow();
+		}
+		for (SqlSession worker : this._workers) {
+			worker.close();
+		}//end for
+		if (this._storage instanceof ShardedStorage) {
+			((ShardedStorage) this._storage).close();
+		}//end if
+		if (this._snapshot != null) {
+			try{
+				((MemoryStorage) this._storage).saveSnapshot(this._snapshot);
+			}catch (Exception e){
+				System.err.println("Unable to save snapshot: " + e.getMessage());
+			}//end try
+		}//end if
+		this.close();
 	}//end cleanup
 
 	/**
@@ -228,26 +613,65 @@ public class PizzaStore {
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		String batch = null;
+		String memory = null;
+		String snapshot = null;
+		String shards = null;
+		boolean hashPasswords = false;
+		List<String> database = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--batch") && i + 1 < args.length) batch = args[++i];
+			else if (args[i].equals("--hash-passwords")) hashPasswords = true;
+			else if (args[i].equals("--memory") && i + 1 < args.length) memory = args[++i];
+			else if (args[i].equals("--snapshot") && i + 1 < args.length) snapshot = args[++i];
+			else if (args[i].equals("--shards") && i + 1 < args.length) shards = args[++i];
+			else database.add(args[i]);
+		}//end for
+		if (memory == null ? (database.size() != 3 || snapshot != null) : (!database.isEmpty() || shards != null)
+				|| (hashPasswords && batch != null)) {
 			System.err.println (
 					"Usage: " +
 					"java [-classpath <classpath>] " +
 					PizzaStore.class.getName () +
-					" <dbname> <port> <user>");
+					" <dbname> <port> <user> [--shards <shard map>] [--batch <file>|-|--hash-passwords]\n" +
+					"   or: java [-classpath <classpath>] " +
+					PizzaStore.class.getName () +
+					" --memory <data dir> [--snapshot <file>] [--batch <file>|-|--hash-passwords]");
+			return;
+		}//end if
+
+		if (hashPasswords) {
+			hashPasswords(database, memory, snapshot, shards);
+			return;
+		}//end if
+
+		if (batch != null) {
+			if (shards != null) {
+				// the batch transaction would not cover the writes made on the
+				// other shards, they commit on their own connections
+				System.err.println("--batch cannot be combined with --shards");
+				return;
+			}//end if
+			runBatch(database, memory, snapshot, shards, batch);
 			return;
 		}//end if
 
 		Greeting();
 		PizzaStore esql = null;
 		try{
-			// use postgres JDBC driver.
-			Class.forName ("org.postgresql.Driver").newInstance ();
-			// instantiate the PizzaStore object and creates a physical
-			// connection.
-			String dbname = args[0];
-			String dbport = args[1];
-			String user = args[2];
-			esql = new PizzaStore (dbname, dbport, user, "");
+			// instantiate the PizzaStore object, connected to the database or
+			// on an in-memory store
+			esql = open(database, memory, snapshot, shards);
+			if (esql.hasConnection()) {
+				esql.startChangeFeed();
+				for (DispatchQueue queue : esql.getDispatchQueues()) {
+					try {
+						queue.rebuild();
+					}catch (SQLException e){
+						System.err.println("Dispatch queues are loaded on the first claim: " + e.getMessage());
+					}//end try
+				}//end for
+			}//end if
 
 			boolean keepon = true;
 			while(keepon) {
@@ -258,12 +682,19 @@ public class PizzaStore {
 				System.out.println("2. Log in");
 				System.out.println("9. < EXIT");
 				String authorisedUser = null;
-				switch (readChoice()){
-					case 1: CreateUser(esql); break;
-					case 2: authorisedUser = LogIn(esql); break;
-					case 9: keepon = false; break;
-					default : System.out.println("Unrecognized choice!"); break;
-				}//end switch
+				int choice = readChoice();
+				String operation = operationName(MAIN_MENU_OPERATIONS, choice);
+				esql.beginOperation(operation);
+				try {
+					switch (choice){
+						case 1: CreateUser(esql); break;
+						case 2: authorisedUser = LogIn(esql); break;
+						case 9: keepon = false; break;
+						default : System.out.println("Unrecognized choice!"); break;
+					}//end switch
+				} finally {
+					esql.endOperation(operation);
+				}
 				if (authorisedUser != null) {
 					boolean usermenu = true;
 					while(usermenu) {
@@ -277,33 +708,48 @@ public class PizzaStore {
 						System.out.println("6. View Past 5 Order IDs");
 						System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
 						System.out.println("8. View Stores"); 
+						System.out.println("14. Watch Order");
 
 						//**the following functionalities should only be able to be used by drivers & managers**
 						System.out.println("9. Update Order Status");
+						System.out.println("12. Claim Next Order");
 
 						//**the following functionalities should ony be able to be used by managers**
 						System.out.println("10. Update Menu");
 						System.out.println("11. Update User");
+						System.out.println("13. Archive Old Orders");
+						System.out.println("15. View Demand Forecast");
 
 						System.out.println(".........................");
 						System.out.println("20. Log out");
-						switch (readChoice()){
-							case 1: viewProfile(esql, authorisedUser); break;
-							case 2: updateProfile(esql, authorisedUser); break;
-							case 3: viewMenu(esql); break;
-							case 4: placeOrder(esql, authorisedUser); break;
-							case 5: viewAllOrders(esql, authorisedUser); break;
-							case 6: viewRecentOrders(esql, authorisedUser); break;
-							case 7: viewOrderInfo(esql, authorisedUser); break;
-							case 8: viewStores(esql); break;
-							case 9: updateOrderStatus(esql, authorisedUser); break;
-							case 10: updateMenu(esql, authorisedUser); break;
-							case 11: authorisedUser = updateUser(esql, authorisedUser); break;
-
-
-
-							case 20: usermenu = false; break;
-							default : System.out.println("Unrecognized choice!"); break;
+						choice = readChoice();
+						operation = operationName(USER_MENU_OPERATIONS, choice);
+						esql.beginOperation(operation);
+						try {
+							switch (choice){
+								case 1: viewProfile(esql, authorisedUser); break;
+								case 2: updateProfile(esql, authorisedUser); break;
+								case 3: viewMenu(esql); break;
+								case 4: placeOrder(esql, authorisedUser); break;
+								case 5: viewAllOrders(esql, authorisedUser); break;
+								case 6: viewRecentOrders(esql, authorisedUser); break;
+								case 7: viewOrderInfo(esql, authorisedUser); break;
+								case 8: viewStores(esql); break;
+								case 9: updateOrderStatus(esql, authorisedUser); break;
+								case 10: updateMenu(esql, authorisedUser); break;
+								case 11: authorisedUser = updateUser(esql, authorisedUser); break;
+								case 12: claimNextOrder(esql, authorisedUser); break;
+								case 13: archiveOrders(esql, authorisedUser); break;
+								case 14: watchOrder(esql, authorisedUser); break;
+								case 15: viewDemandForecast(esql, authorisedUser); break;
+
+
+
+								case 20: usermenu = false; break;
+								default : System.out.println("Unrecognized choice!"); break;
+							}
+						} finally {
+							esql.endOperation(operation);
 						}
 					}
 				}
@@ -314,6 +760,18 @@ public class PizzaStore {
 			// make sure to cleanup the created table and close the connection.
 			try{
 				if(esql != null) {
+					if (!esql.getOperationStats().isEmpty()) {
+						esql.getOperationStats().print();
+					}//end if
+					if (!esql.getRecentOrders().isEmpty()) {
+						esql.getRecentOrders().print();
+					}//end if
+					if (!esql.getAuthenticator().isEmpty()) {
+						esql.getAuthenticator().print();
+					}//end if
+					if (!esql.getForecaster().isEmpty()) {
+						esql.getForecaster().print();
+					}//end if
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -324,6 +782,131 @@ public class PizzaStore {
 		}//end try
 	}//end main
 
+	// operation names of the menu entries, used to look up their time budget
+	static final String[] MAIN_MENU_OPERATIONS = {
+		null, "CreateUser", "LogIn"
+	};
+	static final String[] USER_MENU_OPERATIONS = {
+		null, "viewProfile", "updateProfile", "viewMenu", "placeOrder",
+		"viewAllOrders", "viewRecentOrders", "viewOrderInfo", "viewStores",
+		"updateOrderStatus", "updateMenu", "updateUser", "claimNextOrder",
+		"archiveOrders", "watchOrder", "viewDemandForecast"
+	};
+
+	/*
+	 * Returns the operation name of a menu choice or null if the choice does
+	 * not run an operation
+	 **/
+	public static String operationName(String[] operations, int choice) {
+		if (choice < 0 || choice >= operations.length) return null;
+		return operations[choice];
+	}
+
+	/*
+	 * Connects to the database (dbname, port, user), and to the shards of
+	 * the shard map if one is given, or, when memory is given, builds an
+	 * in-memory store.  The store is restored from the snapshot file if it
+	 * exists and loaded from the CSV files of the data directory otherwise,
+	 * and saved to the snapshot file on cleanup.
+	 **/
+	public static PizzaStore open(List<String> database, String memory, String snapshot, String shards) throws Exception {
+		if (memory == null) {
+			// use postgres JDBC driver.
+			Class.forName ("org.postgresql.Driver").newInstance ();
+			PizzaStore esql = new PizzaStore (database.get(0), database.get(1), database.get(2), "");
+			if (shards != null) {
+				esql._storage = ShardedStorage.connect(esql, new File(shards));
+			}//end if
+			// orders placed before their month has a partition would pile up
+			// in the default partition
+			for (PizzaStore orders : esql.databases()) {
+				try {
+					new OrderArchiver(orders).createPartitions();
+				}catch (SQLException e){
+					System.err.println("Monthly order partitions were not created: " + e.getMessage());
+				}//end try
+			}//end for
+			return esql;
+		}//end if
+
+		MemoryStorage storage = new MemoryStorage();
+		File file = snapshot == null ? null : new File(snapshot);
+		if (file != null && file.exists()) {
+			storage.loadSnapshot(file);
+		} else {
+			storage.loadCsv(new File(memory));
+		}//end if
+		return new PizzaStore (storage, file);
+	}//end open
+
+	/*
+	 * Hashes every password still stored in plain text, then makes every
+	 * database refuse plain text passwords from now on
+	 **/
+	public static void hashPasswords(List<String> database, String memory, String snapshot, String shards) {
+		PizzaStore esql = null;
+		try{
+			esql = open(database, memory, snapshot, shards);
+			int hashed = esql.getAuthenticator().hashStoredPasswords(esql.getStorage());
+			System.out.println(hashed + " password(s) hashed");
+			if (esql.hasConnection()) {
+				for (PizzaStore users : esql.databases()) {
+					users.executeUpdate("DO $$ BEGIN " +
+							"IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'users_password_hashed') THEN " +
+							"ALTER TABLE Users ADD CONSTRAINT users_password_hashed CHECK (password LIKE 'pbkdf2$%'); " +
+							"END IF; END $$");
+				}//end for
+			}//end if
+		}catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}finally{
+			try{
+				if (esql != null) esql.cleanup ();
+			}catch (Exception e) {
+				// ignored.
+			}//end try
+		}//end try
+	}//end hashPasswords
+
+	/*
+	 * Runs a command script ('-' reads it from standard input) instead of the
+	 * menus, see BatchRunner for the commands
+	 **/
+	public static void runBatch(List<String> database, String memory, String snapshot, String shards, String script) {
+		PizzaStore esql = null;
+		BufferedReader reader = null;
+		int failed = 1;
+		try{
+			esql = open(database, memory, snapshot, shards);
+			reader = script.equals("-") ? in : new BufferedReader(new FileReader(script));
+			failed = new BatchRunner(esql, System.out).run(reader);
+		}catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}finally{
+			try{
+				if (reader != null && reader != in) reader.close();
+			}catch (Exception e) {
+				// ignored.
+			}//end try
+			if (esql != null) {
+				if (!esql.getOperationStats().isEmpty()) {
+					esql.getOperationStats().print();
+				}//end if
+				if (!esql.getRecentOrders().isEmpty()) {
+					esql.getRecentOrders().print();
+				}//end if
+				if (!esql.getAuthenticator().isEmpty()) {
+					esql.getAuthenticator().print();
+				}//end if
+				if (!esql.getForecaster().isEmpty()) {
+					esql.getForecaster().print();
+				}//end if
+				esql.cleanup ();
+			}//end if
+		}//end try
+		if (failed > 0) System.exit(1);
+	}//end runBatch
+
 	public static void Greeting(){
 		System.out.println(
 				"\n\n*******************************************************\n" +
@@ -366,8 +949,7 @@ public class PizzaStore {
 			System.out.print("\t Enter phone number: ");
 			phone = in.readLine();
 
-			String query = String.format("INSERT INTO Users (login, password, role, phoneNum) VALUES ('%s', '%s', 'Customers', '%s')", username, password, phone);
-			esql.executeUpdate(query);
+			esql.getStorage().createUser(username, esql.getAuthenticator().hash(password), "Customers", phone);
 
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
@@ -388,9 +970,7 @@ public class PizzaStore {
 			System.out.print("Enter password: ");
 			password = in.readLine();
 
-			String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s';", username, password);
-			int count = esql.executeQuery(query);
-			if (count != 0) return username;	
+			if (esql.getAuthenticator().login(esql.getStorage(), username, password)) return username;
 			System.out.println("Username/Password is wrong, try again.");
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
@@ -406,14 +986,12 @@ public class PizzaStore {
 		String user = authorisedUser;
 		try {
 
-			String query = String.format("SELECT * FROM Users WHERE login = '%s'", user);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
-			if(result.isEmpty()) {
+			List<String> profile = esql.getStorage().findUser(user);
+			if(profile == null) {
 				throw new Exception("Error! User not found!");
 			}
-			List<String> profile = result.get(0);
 			System.out.println("Username:\t\t" + profile.get(0));	
-			System.out.println("Password:\t\t" + profile.get(1));	
+			System.out.println("Password:\t\t********");	
 			System.out.println("User Role:\t\t" + profile.get(2));	
 			System.out.println("Favorite Item:\t\t" + profile.get(3));	
 			System.out.println("Phone Number:\t\t" + profile.get(4));	
@@ -428,14 +1006,12 @@ public class PizzaStore {
 		String user = authorisedUser;
 		try {
 
-			String query = String.format("SELECT  FROM Users WHERE login = '%s'", user);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
-			if(result.isEmpty()) {
+			List<String> profile = esql.getStorage().findUser(user);
+			if(profile == null) {
 				throw new Exception("Error! User not found!");
 			}
-			List<String> profile = result.get(0);
 			System.out.println("Username:\t\t" + profile.get(0));	
-			System.out.println("Password:\t\t" + profile.get(1));	
+			System.out.println("Password:\t\t********");	
 			System.out.println("User Role:\t\t" + profile.get(2));	
 			System.out.println("Favorite Item:\t\t" + profile.get(3));	
 			System.out.println("Phone Number:\t\t" + profile.get(4));	
@@ -461,12 +1037,11 @@ public class PizzaStore {
 		System.out.println("2. Search by price");
 		System.out.println("3. Search all items");
 
-		String select = "SELECT * FROM Items i";
-		String condition = "";
-		String query = "";
+		String type = null;
+		String maxPrice = null;
 		switch(readChoice()) {
-			case 1: condition = viewByTypes(esql); break;
-			case 2: condition = viewByCost(esql); break;
+			case 1: type = viewByTypes(esql); break;
+			case 2: maxPrice = viewByCost(esql); break;
 			case 3: break;
 			default: return; 
 		}
@@ -474,11 +1049,10 @@ public class PizzaStore {
 		int choice = 3;
 		while(choice <= 3) {
 			try {
-				query = select + " " + condition;
-				if(choice == 1) query += " ORDER BY price DESC";	
-				else if(choice ==  2) query += " ORDER BY price ASC";	
-				System.out.println(query);
-				List<List<String>> results = esql.executeQueryAndReturnResult(query);
+				int sort = Storage.UNSORTED;
+				if(choice == 1) sort = Storage.PRICE_DESC;	
+				else if(choice ==  2) sort = Storage.PRICE_ASC;	
+				List<List<String>> results = esql.getStorage().findItems(type, maxPrice, sort);
 				for(List<String> result : results) {
 					System.out.println(String.format("Name: \t\t\t%s", result.get(0)));
 					System.out.println(String.format("Ingredients: \t\t%s", result.get(1)));
@@ -511,35 +1085,41 @@ public class PizzaStore {
 			default: condition = " drinks"; break;
 		}
 
-		return String.format("WHERE i.typeOfItem = '%s'", condition);
+		return condition;
 	}
 	public static String viewByCost(PizzaStore esql) {
-		String cost = input("the maximum cost (price under...)", "numeric");	
-		return String.format("WHERE price BETWEEN 0 AND %s", cost); 
+		return input("the maximum cost (price under...)", "numeric");	
 	}
 	public static void placeOrder(PizzaStore esql, String authorisedUser) {
 		Scanner readInput = new Scanner(System.in);
 
+		// the menu and the pricing engine load while the stores are shown
+		CompletableFuture<PricingEngine> pricingRead = esql.readAsync(storage -> esql.getPricingEngine(storage));
+		CompletableFuture<List<List<String>>> menuRead = esql.readAsync(storage -> storage.findItems(null, null, Storage.UNSORTED));
 
 		viewStores(esql);
 		System.out.print("Enter the store id of the store you would like to place an order at: ");
 		int storeID = readInput.nextInt();
 		readInput.nextLine();
+		PricingEngine pricing;
 		List<List<String>> storeItems = new ArrayList();
 		try {	
-			String getItemsQuery = "SELECT * FROM Items";
-			storeItems = esql.executeQueryAndReturnResult(getItemsQuery);
+			pricing = await(pricingRead);
+			storeItems = await(menuRead);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
+			return;
 		}
 		System.out.println("Menu:");
 		for (List<String> item : storeItems) {
+			int index = pricing.indexOf(item.get(0));
+			String price = index < 0 ? item.get(3) : PricingEngine.formatCents(pricing.unitPrice(storeID, index));
 			System.out.printf("Item: %s, Price: $%s, Description: %s\n",
-					item.get(0), item.get(3), item.get(4));
+					item.get(0), price, item.get(4));
 		}
 
-		List<String> userOrder = new ArrayList<>();
-		List<Integer> orderQuantities = new ArrayList<>();
+		// an item entered twice becomes one line with the summed quantity
+		PricingEngine.Cart cart = pricing.newCart();
 		boolean keepAdding = true;
 
 		while (keepAdding) {
@@ -550,60 +1130,79 @@ public class PizzaStore {
 			int quantity = readInput.nextInt();
 			readInput.nextLine();
 
-			userOrder.add(itemName);
-			orderQuantities.add(quantity);
+			int item = pricing.indexOf(itemName);
+			if (item < 0) {
+				System.out.println("That item is not on the menu.");
+			} else if (quantity > 0) {
+				cart.add(item, quantity);
+			}
 
 			System.out.print("Do you want to order more items? (yes/no): ");
 			String userResponse = readInput.nextLine();
 			keepAdding = userResponse.equals("yes");
 		}
 
-		double orderPrice = 0.0;
-		for (int iter = 0; iter < userOrder.size(); iter++) {
-			try {
-				String getPriceQuery = String.format("SELECT price FROM Items WHERE itemName = '%s'", userOrder.get(iter));
-				List<List<String>> priceList = esql.executeQueryAndReturnResult(getPriceQuery);
-
-				if (!priceList.isEmpty()) {
-					double price = Double.parseDouble(priceList.get(0).get(0));
-					orderPrice += price * orderQuantities.get(iter);
-				}
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
-		}
+		// combos, bogo, percent off and happy hours are applied in whole cents
+		long orderPrice = pricing.price(cart, storeID, LocalTime.now().getHour());
 
-		List<List<String>> placeOrder = new ArrayList<>();
+		int orderID;
 		try {
-			String placeOrderQuery = String.format("INSERT INTO FoodOrder (login, storeID, totalPrice, orderTimestamp, orderStatus) VALUES ('%s', %d, %.2f, CURRENT_TIMESTAMP, 'incomplete') RETURNING orderID",
-					authorisedUser, storeID, orderPrice);
-			placeOrder = esql.executeQueryAndReturnResult(placeOrderQuery);
+			orderID = submitOrder(esql, authorisedUser, storeID, pricing, cart, orderPrice);
 		} catch (Exception e) {
-			System.out.println("HAII");
 			System.err.println(e.getMessage());
+			System.out.println("Your order could not be placed.");
+			return;
 		}
-		int orderID = Integer.parseInt(placeOrder.get(0).get(0));
-		for (int iter = 0; iter < userOrder.size(); iter++) {
-			try {
-				String insertOrderQuery = String.format("INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (%d, '%s', %d)",
-						orderID, userOrder.get(iter), orderQuantities.get(iter));
-				esql.executeUpdate(insertOrderQuery);
 
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
+		System.out.printf("Your order has been placed successfully! Order ID: %d, Total Price: $%s\n", orderID, PricingEngine.formatCents(orderPrice));
+	}
+	/*
+	 * Writes a priced cart as a new order and queues it for the drivers
+	 * @return the order id
+	 **/
+	public static int submitOrder(PizzaStore esql, String login, int storeID, PricingEngine pricing, PricingEngine.Cart cart, long price) throws SQLException {
+		// the order id is known up front, so the order row and its line items
+		// are written together
+		int orderID = esql.getStorage().nextOrderId();
+		List<String> itemNames = new ArrayList<>();
+		List<Integer> quantities = new ArrayList<>();
+		int size = 0;
+		for (int item = 0; item < pricing.size(); item++) {
+			if (cart.quantity(item) == 0) continue;
+			itemNames.add(pricing.nameOf(item));
+			quantities.add(cart.quantity(item));
+			size += cart.quantity(item);
 		}
-
-		System.out.printf("Your order has been placed successfully! Order ID: %d, Total Price: $%.2f\n", orderID, orderPrice);
+		final List<String> order = esql.getStorage().insertOrder(orderID, login, storeID, PricingEngine.formatCents(price), itemNames, quantities);
+		final int items = size;
+		esql.afterCommit(() -> {
+			esql.getRecentOrders().orderPlaced(order);
+			esql.getDispatchQueue(storeID).offer(orderID, storeID, order.get(4), items);
+		});
+		return orderID;
 	}
+
 	public static void viewAllOrders(PizzaStore esql, String authorisedUser) {
 		List<List<String>> currUsersOrders = new ArrayList<>();
 		try {
-			String getUsersOrdersQuery = String.format("SELECT * FROM FoodOrder WHERE login = '%s'", authorisedUser);
-			currUsersOrders = esql.executeQueryAndReturnResult(getUsersOrdersQuery);
+			currUsersOrders = esql.getStorage().ordersOf(authorisedUser, 0);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}
+		// orders older than the retention window only live in the archive
+		// files, one directory per shard
+		if (esql.hasConnection()) {
+			List<List<String>> archived = new ArrayList<>();
+			for (OrderArchiver archiver : esql.getOrderArchivers()) {
+				try {
+					archived.addAll(archiver.readOrders(authorisedUser));
+				} catch (Exception e) {
+					System.err.println(e.getMessage());
+				}
+			}
+			archived.sort((a, b) -> b.get(4).compareTo(a.get(4)));
+			currUsersOrders.addAll(archived);
+		}
 		if (currUsersOrders.isEmpty()) {
 			System.out.println("You have no order history.");
 			return;
@@ -618,11 +1217,7 @@ public class PizzaStore {
 	public static void viewRecentOrders(PizzaStore esql, String authorisedUser) {
 		List<List<String>> currUsersOrders = new ArrayList<>();
 		try {
-			String getUsersOrdersQuery = String.format(
-					"SELECT * FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5",
-					authorisedUser
-					);
-			currUsersOrders = esql.executeQueryAndReturnResult(getUsersOrdersQuery);
+			currUsersOrders = esql.getRecentOrders().recentOrders(authorisedUser, 5, esql.getStorage());
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}
@@ -642,37 +1237,35 @@ public class PizzaStore {
 		System.out.print("Enter the Order ID of the order you want to view: ");
 		int orderID = readInput.nextInt();
 
-		String viewOrderQuery;
 		String[] roles = {"manager", "driver"};
-		if (authorise(esql, authorisedUser, roles)) {
-			viewOrderQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d", orderID);
-		} else {
-			viewOrderQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d AND login = '%s'", orderID, authorisedUser);
-		}
 
-		List<List<String>> userOrders = new ArrayList<>();
+		// the order and the role of the user are read at once, the lines
+		// follow the order so its timestamp limits them to its partition
+		CompletableFuture<List<String>> orderRead = esql.readAsync(storage -> storage.findOrder(orderID));
+		CompletableFuture<List<List<String>>> itemsRead = orderRead.thenCompose(found -> found == null
+				? CompletableFuture.completedFuture(new ArrayList<List<String>>())
+				: esql.readAsync(storage -> storage.orderLines(orderID, found.get(4))));
+		CompletableFuture<List<String>> userRead = esql.readAsync(storage -> storage.findUser(authorisedUser));
+
+		List<String> order = null;
+		List<List<String>> items = new ArrayList<>();
 		try {
-			userOrders = esql.executeQueryAndReturnResult(viewOrderQuery);
+			order = await(orderRead);
+			if (order != null && !order.get(1).equals(authorisedUser) && !hasRole(await(userRead), roles)) {
+				order = null;
+			}
+			items = await(itemsRead);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}
-		if (userOrders.isEmpty()) {
+		if (order == null) {
 			System.out.println("No order found with the given ID or you do not have permission to view it.");
 			return;
 		}
 
-		List<String> order = userOrders.get(0);
 		System.out.printf("Order ID: %s\nOrder Timestamp: %s\nTotal Price: $%s\nOrder Status: %s\n",
 				order.get(0), order.get(4), order.get(3), order.get(5));
 
-		viewOrderQuery = String.format("SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = %d", orderID);
-
-		List<List<String>> items = new ArrayList<>();
-		try {
-			items = esql.executeQueryAndReturnResult(viewOrderQuery);
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
-		}
 		System.out.println("Items in this Order:");
 		for (List<String> item : items) {
 			System.out.printf("- %s (Quantity: %s)\n", item.get(0), item.get(1));
@@ -683,8 +1276,7 @@ public class PizzaStore {
 		Scanner readInput = new Scanner(System.in);
 		List<List<String>> availableStores = new ArrayList<>();
 		try { 
-			String getStoresQuery = "SELECT * FROM Store WHERE isOpen = 'yes'";
-			availableStores = esql.executeQueryAndReturnResult(getStoresQuery);
+			availableStores = esql.getStorage().openStores();
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}		
@@ -706,39 +1298,156 @@ public class PizzaStore {
 		int orderID = readInput.nextInt();
 		readInput.nextLine();
 
-		String getOrderQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d", orderID);
-		List<List<String>> allOrders = new ArrayList<>();
+		List<String> order = null;
 		try {
-			allOrders = esql.executeQueryAndReturnResult(getOrderQuery);
+			order = esql.getStorage().findOrder(orderID);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}        
-		if (allOrders.isEmpty()) {
+		if (order == null) {
 			System.out.println("No order found with the given ID.");
 			return;
 		}
 
 
-		List<String> order = allOrders.get(0);
 		System.out.printf("Current Status: %s\n", order.get(5));
 
 		System.out.println("Available statuses: [incomplete, in progress, complete]");
 		System.out.print("Enter the new status: ");
 		String newStatus = readInput.nextLine().trim().toLowerCase();
 
-		if (!newStatus.equals("incomplete") && !newStatus.equals("in progress") && !newStatus.equals("complete")) {
+		if (!isOrderStatus(newStatus)) {
 			System.out.println("Invalid status. Please enter one of the valid statuses.");
 			return;
 		}
 
 		try {
-			String updateOrderStatusQuery = String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %d", newStatus, orderID);
-			esql.executeUpdate(updateOrderStatusQuery);
+			changeOrderStatus(esql, orderID, Integer.parseInt(order.get(2).trim()), newStatus);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}
 		System.out.println("Order status updated successfully.");
 	}
+	/*
+	 * Returns true for the statuses an order can be set to
+	 **/
+	public static boolean isOrderStatus(String status) {
+		return status.equals("incomplete") || status.equals("in progress") || status.equals("complete");
+	}
+	/*
+	 * Sets the status of an order and, once that is committed, updates the
+	 * watchers, the recent orders cache and the dispatch queue.  storeID
+	 * routes the update to the shard of the order, -1 when it is not known.
+	 * @return the number of orders updated
+	 **/
+	public static int changeOrderStatus(final PizzaStore esql, final int orderID, int storeID, final String status) throws SQLException {
+		int rows = storeID < 0
+				? esql.getStorage().updateOrderStatus(orderID, status)
+				: esql.getStorage().updateOrderStatus(orderID, storeID, status);
+		if (rows == 0) return 0;
+		// without the store every shard's queues are told, the others do
+		// not hold the order
+		final List<DispatchQueue> queues = storeID < 0
+				? esql.getDispatchQueues()
+				: Collections.singletonList(esql.getDispatchQueue(storeID));
+		esql.afterCommit(() -> {
+			esql.orderStatusChanged(orderID, status);
+			for (DispatchQueue queue : queues) {
+				if (status.equals(DispatchQueue.INCOMPLETE)) {
+					queue.requeue(orderID);
+				} else {
+					queue.remove(orderID);
+				}
+			}//end for
+		});
+		return rows;
+	}
+	public static void claimNextOrder(PizzaStore esql, String authorisedUser) {
+		Scanner readInput = new Scanner(System.in);
+
+		String[] roles = {"manager", "driver"};
+		if(!authorise(esql, authorisedUser, roles)) {
+			System.out.println("You don't have permissions");
+			return;
+		}
+
+		System.out.print("Enter the store id you are delivering for: ");
+		int storeID = readInput.nextInt();
+		readInput.nextLine();
+
+		try {
+			DispatchQueue.PendingOrder order = esql.getDispatchQueue(storeID).claimNext(storeID);
+			if (order == null) {
+				System.out.println("There are no incomplete orders at this store.");
+				return;
+			}
+			esql.orderStatusChanged(order.orderID, DispatchQueue.IN_PROGRESS);
+			System.out.printf("You claimed Order ID: %d (%d items), it is now in progress.\n", order.orderID, order.size);
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+	/*
+	 * Waits for the status changes of an order and prints them until it is
+	 * complete.  The wait gives up after -Dpizzastore.watch.timeout=<seconds>
+	 * (default 600) without the order completing.
+	 **/
+	public static void watchOrder(PizzaStore esql, String authorisedUser) {
+		Scanner readInput = new Scanner(System.in);
+		System.out.print("Enter the Order ID of the order you want to watch: ");
+		int orderID = readInput.nextInt();
+
+		String[] roles = {"manager", "driver"};
+		OrderWatchRegistry watches = esql.getOrderWatches();
+		long until = System.currentTimeMillis() + Long.getLong("pizzastore.watch.timeout", 600) * 1000;
+
+		// the watch is registered before the status is read, a change in
+		// between is queued on it
+		OrderWatchRegistry.Watch watch = watches.watch(orderID);
+		try {
+			List<String> order = esql.getStorage().findOrder(orderID);
+			if (order != null && !order.get(1).equals(authorisedUser) && !authorise(esql, authorisedUser, roles)) {
+				order = null;
+			}
+			if (order == null) {
+				System.out.println("No order found with the given ID or you do not have permission to view it.");
+				return;
+			}
+			String status = order.get(5).trim();
+			System.out.printf("Order ID: %d is %s.\n", orderID, status);
+
+			while (!status.equals("complete")) {
+				long left = until - System.currentTimeMillis();
+				if (left <= 0) {
+					System.out.println("Stopped watching, the order is still " + status + ".");
+					return;
+				}
+				String next;
+				try {
+					next = watch.next(left);
+				} catch (TimeoutException e) {
+					continue;
+				}
+				if (next == null) {
+					// changes may have been missed, read the order again
+					order = esql.getStorage().findOrder(orderID);
+					if (order == null) {
+						System.out.println("The order no longer exists.");
+						return;
+					}
+					next = order.get(5).trim();
+				}
+				if (!next.equals(status)) {
+					status = next;
+					System.out.printf("[%s] Order ID: %d is now %s.\n", LocalTime.now().withNano(0), orderID, status);
+				}
+			}//end while
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		} finally {
+			watches.cancel(watch);
+		}
+	}
 	public static void updateMenu(PizzaStore esql, String authorisedUser) {
 		String[] roles = {"manager"};	
 		String query = "";
@@ -752,13 +1461,15 @@ public class PizzaStore {
 		System.out.println("1. Update Item"); 
 		System.out.println("2. Remove Item"); 
 		System.out.println("3. Add Item"); 
-		System.out.println("4. Return Home"); 
+		System.out.println("4. Sync Menu From CSV"); 
+		System.out.println("5. Return Home"); 
 
 		switch(readChoice()) {
 			case 1: query = "UPDATE"; break;
 			case 2: query = "DELETE"; break;
 			case 3: query = "INSERT"; break;
-			case 4: return; 
+			case 4: syncMenu(esql); return;
+			case 5: return; 
 			default: System.out.println("Unrecognizable choice!"); break;
 		}
 
@@ -767,25 +1478,19 @@ public class PizzaStore {
 
 			try {
 				String name;
-				String check;
-				String update = "";
 				String attribute = "";
 				String value = "";
 				while(true) {
 
 					name = input("item name ('q' to quit)", "not null");
 					if(name.equals("q")) return;
-					check = String.format("SELECT * FROM Items WHERE itemName = '%s'", name);
-					int count = esql.executeQuery(check);
-					if(count > 0) break;
+					if(esql.getStorage().findItem(name) != null) break;
 					System.out.println("Item name doesn't exist.");
 				}
 
 				while(true) {
 
-					update = "UPDATE Items";
-					List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Items WHERE itemName = '%s'", name));
-					List<String> item = result.get(0);
+					List<String> item = esql.getStorage().findItem(name);
 					System.out.println(String.format("Name: %s", item.get(0))); 
 					System.out.println(String.format("Ingredients: %s", item.get(1))); 
 					System.out.println(String.format("Type: %s", item.get(2))); 
@@ -806,21 +1511,14 @@ public class PizzaStore {
 						case 4: attribute = "description"; break;
 						default: return; 
 					}
-					if(attribute.equals("itemName")) {
-						value = input("new item name", "not null");
-						update += String.format(" SET %s = '%s' WHERE itemName = '%s'", attribute, value, name);
-						name = value;
-					}
-					else if(attribute.equals("price")) {
+					if(attribute.equals("price")) {
 						value = input("new price:", "numeric");
-						update += String.format(" SET %s = '%s' WHERE itemName = '%s'", attribute, value, name);
 					}
 					else { 
 						value = input(String.format("new %s:", attribute), "not null");
-						update += String.format(" SET %s = '%s' WHERE itemName = '%s'", attribute, value, name);
 					} 
-					System.out.println(update);
-					esql.executeUpdate(update);
+					esql.getStorage().updateItem(name, attribute, value);
+					esql.invalidatePricing();
 				}
 
 			} catch (Exception e) {
@@ -833,8 +1531,8 @@ public class PizzaStore {
 				String name;
 				System.out.print("Enter item name: ");
 				name = in.readLine();
-				query = String.format("DELETE FROM Items WHERE itemName = '%s'", name);	
-				esql.executeUpdate(query);
+				esql.getStorage().deleteItem(name);
+				esql.invalidatePricing();
 			} catch (Exception e) {
 				System.err.println(e.getMessage());
 			}
@@ -854,9 +1552,8 @@ public class PizzaStore {
 				price = input("price", "numeric"); 
 				description = input("description", "na"); 
 
-				query = String.format("INSERT INTO Items(itemName, ingredients, typeOfItem, price, description) VALUES('%s', '%s', '%s', %s, '%s')", name, ingredients, type, price, description);
-
-				esql.executeUpdate(query); 
+				esql.getStorage().insertItem(name, ingredients, type, price, description);
+				esql.invalidatePricing();
 			} catch (Exception e) {
 				System.err.println(e.getMessage());
 			}
@@ -865,6 +1562,110 @@ public class PizzaStore {
 
 	}
 
+	/*
+	 * Replaces the menu with the items of a CSV file in the format of
+	 * data/items.csv, after showing what would change
+	 **/
+	public static void syncMenu(PizzaStore esql) {
+		try {
+			String file = input("the path of the menu CSV file", "not null");
+			String remove = input("whether items missing from the file are removed (yes/no)", "not null");
+			MenuSync sync = new MenuSync(esql);
+			MenuSync.Diff diff = sync.diff(MenuSync.readCsv(new File(file)), remove.trim().equals("yes"));
+			diff.report(System.out);
+			if (diff.isEmpty()) return;
+
+			String apply = input("yes to apply these changes", "na");
+			if (!apply.trim().equals("yes")) {
+				System.out.println("Nothing was changed.");
+				return;
+			}
+			sync.apply(diff);
+			System.out.println("The menu is up to date.");
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void archiveOrders(PizzaStore esql, String authorisedUser) {
+		String[] roles = {"manager"};
+		if(!authorise(esql, authorisedUser, roles)) {
+			System.out.println("You do not have permission");
+			return;
+		}
+
+		String months = input(String.format("the number of months to keep in the database (default %d)", OrderArchiver.DEFAULT_RETENTION_MONTHS), "na");
+		int retention;
+		try {
+			retention = months.trim().isEmpty() ? OrderArchiver.DEFAULT_RETENTION_MONTHS : Integer.parseInt(months.trim());
+		} catch (NumberFormatException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		// every shard is archived even when another one fails
+		for (OrderArchiver archiver : esql.getOrderArchivers()) {
+			try {
+				List<String> archived = archiver.run(retention);
+				System.out.println(String.format("Archived %d monthly partitions to %s.", archived.size(), archiver.getDirectory()));
+				for (String partition : archived) {
+					System.out.println("- " + partition);
+				}
+			} catch (Exception e) {
+				System.err.println(archiver.getDirectory() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Shows the expected demand of a store for tomorrow, per item and per
+	 * hour.  The hours completed since the last forecast are fitted first.
+	 **/
+	public static void viewDemandForecast(PizzaStore esql, String authorisedUser) {
+		String[] roles = {"manager"};
+		if(!authorise(esql, authorisedUser, roles)) {
+			System.out.println("You do not have permission");
+			return;
+		}
+
+		Scanner readInput = new Scanner(System.in);
+		System.out.print("Enter the Store ID to forecast: ");
+		int storeID = readInput.nextInt();
+		try {
+			long start = System.currentTimeMillis();
+			long rows = esql.getForecaster().train(esql.getStorage());
+			System.out.println(String.format("Fitted %d new hourly rows in %d ms.", rows, System.currentTimeMillis() - start));
+
+			LocalDate tomorrow = LocalDate.now().plusDays(1);
+			Map<String, double[]> forecast = esql.getForecaster().forecast(storeID, tomorrow);
+			if (forecast.isEmpty()) {
+				System.out.println("No order history for store " + storeID + ".");
+				return;
+			}
+			System.out.println(String.format("Expected demand at store %d on %s %s", storeID, tomorrow.getDayOfWeek(), tomorrow));
+			System.out.println(String.format("%-30s %8s  %s", "ITEM", "TOTAL", "PEAK HOUR"));
+			double[] byHour = new double[24];
+			for (Map.Entry<String, double[]> item : forecast.entrySet()) {
+				double[] hours = item.getValue();
+				double total = 0;
+				int peak = 0;
+				for (int h = 0; h < 24; h++) {
+					total += hours[h];
+					byHour[h] += hours[h];
+					if (hours[h] > hours[peak]) peak = h;
+				}
+				System.out.println(String.format("%-30s %8.1f  %02d:00", item.getKey(), total, peak));
+			}//end for
+			System.out.println();
+			System.out.println(String.format("%-5s  %8s", "HOUR", "ITEMS"));
+			for (int h = 0; h < 24; h++) {
+				// hours rounding to nothing are left out
+				if (byHour[h] >= 0.05) System.out.println(String.format("%02d:00  %8.1f", h, byHour[h]));
+			}
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
 	public static String updateUser(PizzaStore esql, String authorisedUser) {
 		String[] roles = {"manager"};
 		String user = authorisedUser;
@@ -875,17 +1676,16 @@ public class PizzaStore {
 		}
 
 		while(loop) {
-			int check = 0;	
+			List<String> check = null;	
 			try {
 				System.out.print("Enter user: ");
 				user = in.readLine();
-				String query = String.format("SELECT * FROM Users WHERE login = '%s'", user);
-				check = esql.executeQuery(query);
+				check = esql.getStorage().findUser(user);
 			} catch (Exception e) {
 				System.err.println(e.getMessage());
 			}
 
-			if(check <= 0) {
+			if(check == null) {
 				System.out.println("Invalid User!");
 				continue;
 			}
@@ -916,8 +1716,11 @@ public class PizzaStore {
 		try {
 			System.out.print(String.format("Enter %s: ", attribute));
 			text = in.readLine(); 
-			String query = String.format("UPDATE Users SET %s = '%s' WHERE login = '%s'", attribute, text, user); 			
-			esql.executeUpdate(query);
+			if (attribute.equals("password")) {
+				text = esql.getAuthenticator().hash(text);
+			}
+			esql.getStorage().updateUser(user, attribute, text);
+			esql.getAuthenticator().evict(user);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}
@@ -928,8 +1731,8 @@ public class PizzaStore {
 		try {
 			System.out.print(String.format("Enter new %s: ", attribute));
 			text = in.readLine(); 
-			String query = String.format("UPDATE Users SET %s = '%s' WHERE login = '%s'", attribute, text, user); 			
-			esql.executeUpdate(query);
+			esql.getStorage().updateUser(user, attribute, text);
+			esql.getAuthenticator().evict(user);
 
 			if(authorisedUser.equals(user) && attribute.equals("login")) { 
 				return text; 
@@ -942,19 +1745,25 @@ public class PizzaStore {
 
 	public static boolean authorise(PizzaStore esql, String authorisedUser, String[] roles) {
 		try {
-			for (String role : roles) {
-
-				String query = String.format("SELECT * FROM Users WHERE login = '%s' AND role = '%s'", authorisedUser, role);
-				int check = esql.executeQuery(query);
-				if (check > 0) return true;
-			}
-
+			return hasRole(esql.getStorage().findUser(authorisedUser), roles);
 		} catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
 		return false;
 	}
 
+	/*
+	 * Tells whether a user row has one of the roles
+	 **/
+	public static boolean hasRole(List<String> user, String[] roles) {
+		if (user == null) return false;
+		// role is char(20), Postgres pads it with blanks
+		for (String role : roles) {
+			if (user.get(2).trim().equals(role)) return true;
+		}
+		return false;
+	}
+
 	public static String input(String title, String type) {
 
 		if(type.equals("numeric")) {
@@ -0,0 +1,356 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class prices a cart in whole cents.  The menu and the rows of the
+ * Promotion table are compiled once into flat arrays indexed by item, so
+ * pricing a cart is a few array walks with no allocation and no floating
+ * point.
+ *
+ * Rule kinds (Promotion.kind):
+ *   store     - target item costs amount cents at storeID
+ *   combo     - the '|' separated items of target cost amount cents together
+ *   bogo      - every second unit of the target item is free
+ *   percent   - amount percent off every item whose typeOfItem is target
+ *   happyhour - amount percent off the whole cart
+ * Every rule may be limited to one store (storeID) and to the hours
+ * [startHour, endHour) of the day, a window with startHour > endHour wraps
+ * past midnight.
+ *
+ * A cart is priced in this order: combos consume units first, the remaining
+ * units of every line get their bogo and the best percent rule, and the
+ * happy hour discount applies to the sum.
+ *
+ * A store, combo or bogo rule naming an item that is no longer on the menu
+ * is skipped with a warning, removing an item never stops the pricing.
+ *
+ */
+public class PricingEngine {
+
+	// no store filter on a rule
+	private static final int ANY_STORE = 0;
+
+	// menu, indexed by item
+	private final String[] names;
+	private final long[] basePrice;
+	private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+	// store specific price lists, storeIds is sorted for binary search
+	private final int[] storeIds;
+	private final long[][] storePrices;
+
+	// rule arrays, one slot per rule of the kind
+	private final int[][] comboItems;
+	private final int[][] comboCounts;
+	private final long[] comboPrice;
+	private final int[][] comboWhen;
+	private final int[] bogoItem;
+	private final int[][] bogoWhen;
+	private final int[][] percentRules;	// per item, indexes into percentOff
+	private final int[] percentOff;
+	private final int[][] percentWhen;
+	private final int[] happyOff;
+	private final int[][] happyWhen;
+
+	/**
+	 * A reusable cart.  Quantities are kept per item index so adding and
+	 * pricing never allocate.
+	 */
+	public static class Cart {
+		final int[] quantities;
+		final int[] remaining;
+
+		Cart(int items) {
+			this.quantities = new int[items];
+			this.remaining = new int[items];
+		}
+
+		public void add(int item, int quantity) {
+			quantities[item] += quantity;
+		}
+
+		public int quantity(int item) {
+			return quantities[item];
+		}
+
+		public void clear() {
+			Arrays.fill(quantities, 0);
+		}
+	}//end Cart
+
+	/**
+	 * Loads the menu and the promotions and compiles them
+	 *
+	 * @param storage where the menu and the promotions are stored
+	 * @return the compiled pricing engine
+	 * @throws java.sql.SQLException when the menu or the promotions could not be read
+	 */
+	public static PricingEngine load(Storage storage) throws SQLException {
+		List<List<String>> items = new ArrayList<List<String>>();
+		for (List<String> item : storage.findItems(null, null, Storage.UNSORTED)) {
+			items.add(Arrays.asList(item.get(0), item.get(2), item.get(3)));
+		}
+		items.sort((a, b) -> a.get(0).compareTo(b.get(0)));
+		return new PricingEngine(items, storage.promotions());
+	}//end load
+
+	/**
+	 * Compiles a menu and a rule set
+	 *
+	 * @param items rows of (itemName, typeOfItem, price)
+	 * @param rules rows of (kind, storeID, target, amount, startHour, endHour)
+	 */
+	public PricingEngine(List<List<String>> items, List<List<String>> rules) {
+		int count = items.size();
+		names = new String[count];
+		basePrice = new long[count];
+		String[] types = new String[count];
+		for (int i = 0; i < count; i++) {
+			List<String> item = items.get(i);
+			names[i] = item.get(0).trim();
+			types[i] = item.get(1).trim();
+			basePrice[i] = parseCents(item.get(2));
+			index.put(names[i], i);
+		}
+
+		Map<Integer, long[]> stores = new HashMap<Integer, long[]>();
+		List<int[]> combos = new ArrayList<int[]>();
+		List<Long> comboPrices = new ArrayList<Long>();
+		List<int[]> comboWindows = new ArrayList<int[]>();
+		List<Integer> bogos = new ArrayList<Integer>();
+		List<int[]> bogoWindows = new ArrayList<int[]>();
+		List<Integer> percents = new ArrayList<Integer>();
+		List<int[]> percentWindows = new ArrayList<int[]>();
+		List<List<Integer>> perItem = new ArrayList<List<Integer>>();
+		for (int i = 0; i < count; i++) perItem.add(new ArrayList<Integer>());
+		List<Integer> happies = new ArrayList<Integer>();
+		List<int[]> happyWindows = new ArrayList<int[]>();
+
+		for (List<String> rule : rules) {
+			String kind = rule.get(0).trim().toLowerCase();
+			int store = rule.get(1) == null ? ANY_STORE : Integer.parseInt(rule.get(1).trim());
+			String target = rule.get(2).trim();
+			String amount = rule.get(3).trim();
+			int[] when = {store, Integer.parseInt(rule.get(4).trim()), Integer.parseInt(rule.get(5).trim())};
+
+			if (kind.equals("store")) {
+				if (store == ANY_STORE) throw new IllegalArgumentException("Store price without a storeID: " + target);
+				int item = require(target);
+				if (item < 0) continue;
+				long[] prices = stores.get(store);
+				if (prices == null) {
+					prices = basePrice.clone();
+					stores.put(store, prices);
+				}
+				prices[item] = Long.parseLong(amount);
+			} else if (kind.equals("combo")) {
+				String[] parts = target.split("\\|");
+				int[] members = new int[parts.length];
+				boolean known = true;
+				for (int p = 0; p < parts.length; p++) {
+					members[p] = require(parts[p].trim());
+					if (members[p] < 0) known = false;
+				}
+				if (!known) continue;
+				combos.add(members);
+				comboPrices.add(Long.parseLong(amount));
+				comboWindows.add(when);
+			} else if (kind.equals("bogo")) {
+				int item = require(target);
+				if (item < 0) continue;
+				bogos.add(item);
+				bogoWindows.add(when);
+			} else if (kind.equals("percent")) {
+				int next = percents.size();
+				percents.add(Integer.parseInt(amount));
+				percentWindows.add(when);
+				for (int i = 0; i < count; i++) {
+					if (types[i].equalsIgnoreCase(target)) perItem.get(i).add(next);
+				}
+			} else if (kind.equals("happyhour")) {
+				happies.add(Integer.parseInt(amount));
+				happyWindows.add(when);
+			} else {
+				throw new IllegalArgumentException("Unknown promotion kind: " + kind);
+			}
+		}//end for
+
+		storeIds = new int[stores.size()];
+		int s = 0;
+		for (Integer id : stores.keySet()) storeIds[s++] = id;
+		Arrays.sort(storeIds);
+		storePrices = new long[storeIds.length][];
+		for (s = 0; s < storeIds.length; s++) storePrices[s] = stores.get(storeIds[s]);
+
+		// combos keep their members as (item, count) pairs so a pizza listed
+		// twice in one combo needs two units
+		comboItems = new int[combos.size()][];
+		comboCounts = new int[combos.size()][];
+		comboPrice = new long[combos.size()];
+		for (int c = 0; c < combos.size(); c++) {
+			int[] members = combos.get(c);
+			Arrays.sort(members);
+			int distinct = 0;
+			for (int m = 0; m < members.length; m++) {
+				if (m == 0 || members[m] != members[m - 1]) distinct++;
+			}
+			comboItems[c] = new int[distinct];
+			comboCounts[c] = new int[distinct];
+			int d = -1;
+			for (int m = 0; m < members.length; m++) {
+				if (m == 0 || members[m] != members[m - 1]) comboItems[c][++d] = members[m];
+				comboCounts[c][d]++;
+			}
+			comboPrice[c] = comboPrices.get(c);
+		}
+		comboWhen = comboWindows.toArray(new int[0][]);
+		bogoItem = toArray(bogos);
+		bogoWhen = bogoWindows.toArray(new int[0][]);
+		percentOff = toArray(percents);
+		percentWhen = percentWindows.toArray(new int[0][]);
+		percentRules = new int[count][];
+		for (int i = 0; i < count; i++) percentRules[i] = toArray(perItem.get(i));
+		happyOff = toArray(happies);
+		happyWhen = happyWindows.toArray(new int[0][]);
+	}//end PricingEngine
+
+	/*
+	 * Returns the index of an item or -1 if it is not on the menu
+	 **/
+	public int indexOf(String itemName) {
+		Integer item = index.get(itemName.trim());
+		return item == null ? -1 : item;
+	}
+
+	public String nameOf(int item) {
+		return names[item];
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public Cart newCart() {
+		return new Cart(names.length);
+	}
+
+	/*
+	 * Returns the unit price of an item at a store, before any discount
+	 **/
+	public long unitPrice(int storeID, int item) {
+		return pricesAt(storeID)[item];
+	}
+
+	/**
+	 * Prices a cart
+	 *
+	 * @param cart the items and quantities ordered
+	 * @param storeID the store the order is placed at
+	 * @param hour hour of the day (0-23) the order is placed at
+	 * @return the total price in cents
+	 */
+	public long price(Cart cart, int storeID, int hour) {
+		long[] prices = pricesAt(storeID);
+		int[] remaining = cart.remaining;
+		System.arraycopy(cart.quantities, 0, remaining, 0, remaining.length);
+
+		long total = 0;
+		for (int c = 0; c < comboPrice.length; c++) {
+			if (!applies(comboWhen[c], storeID, hour)) continue;
+			int[] members = comboItems[c];
+			int[] counts = comboCounts[c];
+			int times = Integer.MAX_VALUE;
+			for (int m = 0; m < members.length; m++) {
+				times = Math.min(times, remaining[members[m]] / counts[m]);
+			}
+			if (times == 0) continue;
+			for (int m = 0; m < members.length; m++) remaining[members[m]] -= times * counts[m];
+			total += times * comboPrice[c];
+		}//end for
+
+		for (int item = 0; item < remaining.length; item++) {
+			int units = remaining[item];
+			if (units == 0) continue;
+			for (int b = 0; b < bogoItem.length; b++) {
+				if (bogoItem[b] == item && applies(bogoWhen[b], storeID, hour)) {
+					units -= units / 2;
+					break;
+				}
+			}
+			int best = 0;
+			int[] rules = percentRules[item];
+			for (int r = 0; r < rules.length; r++) {
+				if (percentOff[rules[r]] > best && applies(percentWhen[rules[r]], storeID, hour)) best = percentOff[rules[r]];
+			}
+			total += discount(units * prices[item], best);
+		}//end for
+
+		int happy = 0;
+		for (int h = 0; h < happyOff.length; h++) {
+			if (happyOff[h] > happy && applies(happyWhen[h], storeID, hour)) happy = happyOff[h];
+		}
+		return discount(total, happy);
+	}//end price
+
+	/*
+	 * Parses a decimal(10,2) price such as "9.99" into cents
+	 **/
+	public static long parseCents(String price) {
+		String text = price.trim();
+		int dot = text.indexOf('.');
+		if (dot < 0) return Long.parseLong(text) * 100;
+		String fraction = (text.substring(dot + 1) + "00").substring(0, 2);
+		long whole = dot == 0 ? 0 : Long.parseLong(text.substring(0, dot));
+		return whole * 100 + Long.parseLong(fraction);
+	}//end parseCents
+
+	/*
+	 * Formats cents as a decimal(10,2) literal such as "9.99"
+	 **/
+	public static String formatCents(long cents) {
+		return String.format("%d.%02d", cents / 100, cents % 100);
+	}
+
+	// percent off, rounded half up to the cent
+	private static long discount(long cents, int percent) {
+		if (percent == 0) return cents;
+		return (cents * (100 - percent) + 50) / 100;
+	}
+
+	private long[] pricesAt(int storeID) {
+		int s = Arrays.binarySearch(storeIds, storeID);
+		return s >= 0 ? storePrices[s] : basePrice;
+	}
+
+	private static boolean applies(int[] when, int storeID, int hour) {
+		if (when[0] != ANY_STORE && when[0] != storeID) return false;
+		int start = when[1];
+		int end = when[2];
+		if (start <= end) return hour >= start && hour < end;
+		return hour >= start || hour < end;
+	}//end applies
+
+	/*
+	 * Returns the index of an item a rule refers to, -1 with a warning when
+	 * it is not on the menu
+	 **/
+	private int require(String itemName) {
+		Integer item = index.get(itemName);
+		if (item == null) {
+			System.err.println("Promotion skipped, it refers to an item not on the menu: " + itemName);
+			return -1;
+		}
+		return item;
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++) array[i] = values.get(i);
+		return array;
+	}
+
+}//end PricingEngine
@@ -0,0 +1,284 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class caches the last orders of the users active in this process, so
+ * viewRecentOrders does not query FoodOrder every time.  Each cached user
+ * has a fixed size ring buffer of order rows, newest at the head.  Users are
+ * kept in least recently used order and evicted once the estimated size of
+ * the cache exceeds its memory cap.
+ *
+ * placeOrder pushes the new order into the ring of its user and status
+ * changes, local or from the change feed, update the cached row in place.
+ * A user missing from the cache is loaded from storage on first read.
+ * Orders placed by other processes are not pushed, so a ring is reloaded
+ * once it is older than the time to live.  Pushes and status changes that
+ * arrive while a user is being loaded are applied to the loaded ring before
+ * it is installed, so a load never has to be thrown away for them.
+ *
+ */
+public class RecentOrdersCache {
+
+	// per object and per string overhead used to estimate the cache size
+	private static final int OBJECT_BYTES = 48;
+
+	/**
+	 * The last orders of one user
+	 */
+	private static class Ring {
+		final List<List<String>> orders;
+		final long loadedAt;
+		int head = 0;	// slot of the next push
+		int count = 0;
+		long bytes = OBJECT_BYTES;
+
+		Ring(int size, long loadedAt) {
+			this.orders = new ArrayList<List<String>>(Collections.nCopies(size, (List<String>) null));
+			this.loadedAt = loadedAt;
+		}
+
+		// returns the order pushed out of the ring, null if none was
+		List<String> push(List<String> order) {
+			List<String> oldest = orders.set(head, order);
+			if (oldest != null) bytes -= sizeOf(oldest);
+			bytes += sizeOf(order);
+			head = (head + 1) % orders.size();
+			if (count < orders.size()) count++;
+			return oldest;
+		}
+
+		boolean contains(int orderID) {
+			for (int i = 0; i < count; i++) {
+				if (Integer.parseInt(orders.get(i).get(0).trim()) == orderID) return true;
+			}
+			return false;
+		}
+
+		boolean replace(int orderID, String status) {
+			for (int i = 0; i < count; i++) {
+				List<String> order = orders.get(i);
+				if (Integer.parseInt(order.get(0).trim()) != orderID) continue;
+				List<String> changed = new ArrayList<String>(order);
+				changed.set(5, status);
+				bytes += sizeOf(changed) - sizeOf(order);
+				orders.set(i, changed);
+				return true;
+			}
+			return false;
+		}
+
+		List<List<String>> newestFirst(int limit) {
+			List<List<String>> result = new ArrayList<List<String>>();
+			for (int i = 1; i <= count && result.size() < limit; i++) {
+				result.add(orders.get((head - i + orders.size()) % orders.size()));
+			}
+			return result;
+		}
+	}//end Ring
+
+	/**
+	 * A load of one user in progress, and what happened while it ran
+	 */
+	private static class Load {
+		final String login;
+		// orders of the user placed during the load, oldest first
+		final List<List<String>> placed = new ArrayList<List<String>>();
+		// last status of every order changed during the load
+		final Map<Integer, String> changed = new HashMap<Integer, String>();
+		// set when the cache was cleared, the load is not installed
+		boolean dropped = false;
+
+		Load(String login) {
+			this.login = login;
+		}
+	}//end Load
+
+	private final int ringSize;
+	private final long maxBytes;
+	private final long timeToLive;
+
+	// access ordered, the first entry is the least recently used user
+	private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<String, Ring>(16, 0.75f, true);
+	// login of every cached order, for status updates by orderID
+	private final Map<Integer, String> loginOf = new HashMap<Integer, String>();
+	private long bytes = 0;
+	// users being loaded from storage
+	private final List<Load> loads = new ArrayList<Load>();
+
+	private long hits = 0;
+	private long misses = 0;
+	private long expired = 0;
+	private long evictions = 0;
+
+	/**
+	 * Creates the cache.  The orders kept per user, the memory cap and the
+	 * time to live can be tuned with -Dpizzastore.recent.size=<orders>,
+	 * -Dpizzastore.recent.memory=<bytes> and -Dpizzastore.recent.ttl=<seconds>.
+	 */
+	public RecentOrdersCache() {
+		this.ringSize = Math.max(1, Integer.getInteger("pizzastore.recent.size", 5));
+		this.maxBytes = Long.getLong("pizzastore.recent.memory", 8L << 20);
+		this.timeToLive = Long.getLong("pizzastore.recent.ttl", 60) * 1000;
+	}//end RecentOrdersCache
+
+	/**
+	 * Returns the last orders of a user, newest first, loading them from
+	 * storage if the user is not cached
+	 *
+	 * @param login the user
+	 * @param limit the number of orders wanted, at most the ring size
+	 * @param storage where the orders are loaded from on a miss
+	 * @return the orders of the user
+	 * @throws java.sql.SQLException when the orders could not be loaded
+	 */
+	public List<List<String>> recentOrders(String login, int limit, Storage storage) throws SQLException {
+		Load load = new Load(login);
+		synchronized (this) {
+			Ring ring = rings.get(login);
+			if (ring != null && System.currentTimeMillis() - ring.loadedAt < timeToLive) {
+				hits++;
+				return ring.newestFirst(limit);
+			}
+			if (ring == null) misses++;
+			else expired++;
+			loads.add(load);
+		}//end synchronized
+
+		List<List<String>> orders;
+		try {
+			orders = storage.ordersOf(login, ringSize);
+		} finally {
+			synchronized (this) {
+				loads.remove(load);
+			}
+		}//end try
+		synchronized (this) {
+			Ring ring = new Ring(ringSize, System.currentTimeMillis());
+			for (int i = orders.size() - 1; i >= 0; i--) ring.push(orders.get(i));
+			// the load may or may not have read what happened meanwhile
+			for (List<String> order : load.placed) {
+				if (!ring.contains(Integer.parseInt(order.get(0).trim()))) ring.push(order);
+			}
+			for (Map.Entry<Integer, String> change : load.changed.entrySet()) {
+				ring.replace(change.getKey(), change.getValue());
+			}
+			if (!load.dropped) {
+				remove(login);
+				install(login, ring);
+			}
+			return ring.newestFirst(limit);
+		}//end synchronized
+	}//end recentOrders
+
+	/**
+	 * Pushes a new order into the ring of its user, if the user is cached
+	 *
+	 * @param order the order row as written
+	 */
+	public synchronized void orderPlaced(List<String> order) {
+		for (Load load : loads) {
+			if (load.login.equals(order.get(1))) load.placed.add(order);
+		}
+		Ring ring = rings.get(order.get(1));
+		if (ring == null) return;
+		bytes -= ring.bytes;
+		List<String> oldest = ring.push(order);
+		if (oldest != null) loginOf.remove(Integer.parseInt(oldest.get(0).trim()));
+		loginOf.put(Integer.parseInt(order.get(0).trim()), order.get(1));
+		bytes += ring.bytes;
+		evict();
+	}//end orderPlaced
+
+	/**
+	 * Updates the status of a cached order in place
+	 *
+	 * @param orderID the changed order
+	 * @param status the new status
+	 */
+	public synchronized void statusChanged(int orderID, String status) {
+		// the order's user is not known before it is loaded
+		for (Load load : loads) load.changed.put(orderID, status);
+		String login = loginOf.get(orderID);
+		if (login == null) return;
+		Ring ring = rings.get(login);
+		bytes -= ring.bytes;
+		ring.replace(orderID, status);
+		bytes += ring.bytes;
+	}//end statusChanged
+
+	/*
+	 * Drops every cached user, used when changes may have been missed
+	 **/
+	public synchronized void clear() {
+		for (Load load : loads) load.dropped = true;
+		rings.clear();
+		loginOf.clear();
+		bytes = 0;
+	}
+
+	private void install(String login, Ring ring) {
+		rings.put(login, ring);
+		for (int i = 0; i < ring.count; i++) {
+			loginOf.put(Integer.parseInt(ring.orders.get(i).get(0).trim()), login);
+		}
+		bytes += ring.bytes;
+		evict();
+	}//end install
+
+	private void remove(String login) {
+		Ring ring = rings.remove(login);
+		if (ring == null) return;
+		for (int i = 0; i < ring.count; i++) {
+			loginOf.remove(Integer.parseInt(ring.orders.get(i).get(0).trim()));
+		}
+		bytes -= ring.bytes;
+	}//end remove
+
+	// drops least recently used users until the cache fits its cap, the
+	// most recent one always stays
+	private void evict() {
+		Iterator<Map.Entry<String, Ring>> eldest = rings.entrySet().iterator();
+		while (bytes > maxBytes && rings.size() > 1) {
+			Map.Entry<String, Ring> entry = eldest.next();
+			Ring ring = entry.getValue();
+			for (int i = 0; i < ring.count; i++) {
+				loginOf.remove(Integer.parseInt(ring.orders.get(i).get(0).trim()));
+			}
+			bytes -= ring.bytes;
+			eldest.remove();
+			evictions++;
+		}
+	}//end evict
+
+	private static long sizeOf(List<String> order) {
+		long size = OBJECT_BYTES;
+		for (String value : order) {
+			if (value != null) size += OBJECT_BYTES + 2L * value.length();
+		}
+		return size;
+	}
+
+	/*
+	 * Returns true once the cache has been read
+	 **/
+	public synchronized boolean isEmpty() {
+		return hits + misses + expired == 0;
+	}
+
+	/*
+	 * Prints the hit ratio, evictions and size of the cache to standard out
+	 **/
+	public synchronized void print() {
+		long reads = hits + misses + expired;
+		System.out.println("RECENT ORDERS CACHE\tHITS\tMISSES\tEXPIRED\tHIT RATIO\tEVICTIONS\tUSERS\tBYTES");
+		System.out.printf("\t\t\t%d\t%d\t%d\t%.1f%%\t\t%d\t\t%d\t%d\n", hits, misses, expired,
+				reads == 0 ? 0.0 : hits * 100.0 / reads, evictions, rings.size(), bytes);
+	}//end print
+
+}//end RecentOrdersCache
@@ -0,0 +1,534 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class implements Storage over several Postgres databases, each
+ * holding the orders of a range of stores.  FoodOrder and ItemsInOrder rows
+ * live only on the shard that owns their storeID, so order writes of
+ * different stores go to different primaries.  Users, Items, Store and
+ * Promotion are reference data: they are read from the home database (the
+ * one named on the command line) and every write to them is applied to all
+ * shards, so the foreign keys of the orders hold on every shard.  The write
+ * is made in an open transaction on every other shard, then on the home
+ * database, and the shards commit only once all of them took it; a write
+ * failing anywhere before that fails the operation and changes nothing.
+ * A shard whose commit fails afterwards has the write applied again, up to
+ * -Dpizzastore.shard.retries=<retries> (default 3) times.
+ *
+ * Statements sent to the other shards are charged to the operation running
+ * on the home database: they get what is left of its time budget as their
+ * statement_timeout and count in its statistics, see Deadline.
+ *
+ * Order ids come from the sequence of the home database, so they are unique
+ * across shards.  Lookups by orderID and per user histories do not know the
+ * store, they are sent to all shards in parallel and the results merged,
+ * histories newest first by orderTimestamp.
+ *
+ * The shard map is a text file, one range of stores per line, blank lines
+ * and lines starting with '#' are skipped:
+ *
+ *   # storeIDs   dbname        port   user
+ *   1-499        pizza_east    5432   postgres
+ *   500-999      pizza_west    5433   postgres
+ *   1000         pizza_flagship 5434  postgres
+ *
+ * Stores not covered by any range belong to the home database.  A shard is
+ * named <dbname>-<port> after its line of the map, the name of the
+ * directory its orders are archived to.
+ *
+ */
+public class ShardedStorage implements Storage {
+
+	/*
+	 * A read or write run on one shard
+	 **/
+	private interface ShardCall<T> {
+		T run(Storage shard) throws SQLException;
+	}
+
+	// shard 0 is the home database, the others are connected from the map
+	private final List<PizzaStore> databases = new ArrayList<PizzaStore>();
+	private final List<String> names = new ArrayList<String>();
+	private final List<Storage> shards = new ArrayList<Storage>();
+
+	// sorted, non overlapping storeID ranges and the shard owning each
+	private final int[] firstStore;
+	private final int[] lastStore;
+	private final int[] owner;
+
+	private final ExecutorService workers;
+	private final int retries = Math.max(0, Integer.getInteger("pizzastore.shard.retries", 3));
+
+	private ShardedStorage(PizzaStore home, List<PizzaStore> others, List<String> names, List<int[]> ranges) {
+		this.databases.add(home);
+		this.databases.addAll(others);
+		this.names.add(null);
+		this.names.addAll(names);
+		for (PizzaStore database : this.databases) {
+			this.shards.add(new JdbcStorage(database));
+		}
+		this.firstStore = new int[ranges.size()];
+		this.lastStore = new int[ranges.size()];
+		this.owner = new int[ranges.size()];
+		for (int i = 0; i < ranges.size(); i++) {
+			this.firstStore[i] = ranges.get(i)[0];
+			this.lastStore[i] = ranges.get(i)[1];
+			this.owner[i] = ranges.get(i)[2];
+		}
+		this.workers = Executors.newFixedThreadPool(Math.max(1, others.size()), runnable -> {
+			Thread thread = new Thread(runnable, "shard-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}//end ShardedStorage
+
+	/**
+	 * Reads a shard map and connects to every database it names
+	 *
+	 * @param home the database named on the command line
+	 * @param map the shard map file
+	 * @return the sharded storage
+	 * @throws java.io.IOException when the map could not be read or is malformed
+	 * @throws java.sql.SQLException when a shard could not be connected
+	 */
+	public static ShardedStorage connect(PizzaStore home, File map) throws IOException, SQLException {
+		Map<String, Integer> shardOf = new HashMap<String, Integer>();
+		List<PizzaStore> others = new ArrayList<PizzaStore>();
+		List<String> names = new ArrayList<String>();
+		List<int[]> ranges = new ArrayList<int[]>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(map));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+				String[] words = trimmed.split("\\s+");
+				if (words.length != 4) {
+					throw new IOException(String.format("%s:%d: expected <first>[-<last>] <dbname> <port> <user>", map, lineNumber));
+				}
+				int dash = words[0].indexOf('-');
+				int[] range = new int[3];
+				try {
+					range[0] = Integer.parseInt(dash < 0 ? words[0] : words[0].substring(0, dash));
+					range[1] = Integer.parseInt(dash < 0 ? words[0] : words[0].substring(dash + 1));
+				} catch (NumberFormatException e) {
+					throw new IOException(String.format("%s:%d: invalid store range %s", map, lineNumber, words[0]));
+				}
+				if (range[1] < range[0]) {
+					throw new IOException(String.format("%s:%d: invalid store range %s", map, lineNumber, words[0]));
+				}
+
+				// ranges of the same database share one connection
+				String database = words[1] + ":" + words[2] + ":" + words[3];
+				Integer shard = shardOf.get(database);
+				if (shard == null) {
+					others.add(new PizzaStore(words[1], words[2], words[3], ""));
+					names.add(words[1] + "-" + words[2]);
+					shard = others.size();
+					shardOf.put(database, shard);
+				}
+				range[2] = shard;
+				ranges.add(range);
+			}//end while
+		} finally {
+			reader.close();
+		}//end try
+
+		ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+		for (int i = 1; i < ranges.size(); i++) {
+			if (ranges.get(i)[0] <= ranges.get(i - 1)[1]) {
+				throw new IOException(String.format("%s: store %d is mapped to two shards", map, ranges.get(i)[0]));
+			}
+		}
+		return new ShardedStorage(home, others, names, ranges);
+	}//end connect
+
+	/**
+	 * Method to return the number of databases, the home database included
+	 *
+	 * @return the number of shards
+	 */
+	public int shardCount() {
+		return this.shards.size();
+	}
+
+	/**
+	 * Method to return the database of a shard
+	 *
+	 * @param shard index of the shard, 0 for the home database
+	 * @return the database
+	 */
+	public PizzaStore database(int shard) {
+		return this.databases.get(shard);
+	}
+
+	/**
+	 * Method to return the name of a shard, <dbname>-<port>
+	 *
+	 * @param shard index of the shard
+	 * @return the name, null for the home database
+	 */
+	public String shardName(int shard) {
+		return this.names.get(shard);
+	}
+
+	/**
+	 * Method to return the shard holding the orders of a store
+	 *
+	 * @param storeID the store
+	 * @return index of the shard, 0 for the home database
+	 */
+	public int shardOf(int storeID) {
+		int low = 0;
+		int high = firstStore.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (storeID < firstStore[middle]) high = middle - 1;
+			else if (storeID > lastStore[middle]) low = middle + 1;
+			else return owner[middle];
+		}
+		return 0;
+	}//end shardOf
+
+	/**
+	 * Method to close the connections to the shards, the home database is
+	 * closed by its owner
+	 */
+	public void close() {
+		workers.shutdownNow();
+		for (int i = 1; i < databases.size(); i++) {
+			databases.get(i).cleanup();
+		}
+	}//end close
+
+	/*
+	 * Users
+	 **/
+	public List<String> findUser(String login) throws SQLException {
+		return home().findUser(login);
+	}
+
+	public String findPassword(String login) throws SQLException {
+		return home().findPassword(login);
+	}
+
+	public List<List<String>> plainPasswords() throws SQLException {
+		return home().plainPasswords();
+	}
+
+	public void createUser(final String login, final String password, final String role, final String phoneNum) throws SQLException {
+		replicate(shard -> { shard.createUser(login, password, role, phoneNum); return null; });
+	}
+
+	public int updateUser(final String login, final String attribute, final String value) throws SQLException {
+		return replicate(shard -> shard.updateUser(login, attribute, value));
+	}
+
+	/*
+	 * Items
+	 **/
+	public List<String> findItem(String itemName) throws SQLException {
+		return home().findItem(itemName);
+	}
+
+	public List<List<String>> findItems(String typeOfItem, String maxPrice, int sort) throws SQLException {
+		return home().findItems(typeOfItem, maxPrice, sort);
+	}
+
+	public void insertItem(final String itemName, final String ingredients, final String typeOfItem, final String price, final String description) throws SQLException {
+		replicate(shard -> { shard.insertItem(itemName, ingredients, typeOfItem, price, description); return null; });
+	}
+
+	public int updateItem(final String itemName, final String attribute, final String value) throws SQLException {
+		return replicate(shard -> shard.updateItem(itemName, attribute, value));
+	}
+
+	public int deleteItem(final String itemName) throws SQLException {
+		return replicate(shard -> shard.deleteItem(itemName));
+	}
+
+	public List<List<String>> promotions() throws SQLException {
+		return home().promotions();
+	}
+
+	/**
+	 * Method to run reference data updates on every database as one
+	 * replicated write, each database runs them as a single transaction
+	 *
+	 * @param statements the update SQL strings, in execution order
+	 * @throws java.sql.SQLException when any of the statements failed
+	 */
+	public void executeBatch(final List<String> statements) throws SQLException {
+		replicate(shard -> { databaseOf(shard).executeBatch(statements); return null; });
+	}
+
+	/*
+	 * Stores
+	 **/
+	public List<List<String>> openStores() throws SQLException {
+		return home().openStores();
+	}
+
+	public List<Integer> storeIDs() throws SQLException {
+		return home().storeIDs();
+	}
+
+	/*
+	 * Orders
+	 **/
+	public int nextOrderId() throws SQLException {
+		return home().nextOrderId();
+	}
+
+	public List<String> insertOrder(final int orderID, final String login, final int storeID, final String totalPrice, final List<String> itemNames, final List<Integer> quantities) throws SQLException {
+		int shard = shardOf(storeID);
+		synchronized (shards.get(shard)) {
+			return charged(shard, deadline(), storage -> storage.insertOrder(orderID, login, storeID, totalPrice, itemNames, quantities));
+		}
+	}
+
+	public List<String> findOrder(final int orderID) throws SQLException {
+		for (List<String> order : scatter(shard -> shard.findOrder(orderID))) {
+			if (order != null) return order;
+		}
+		return null;
+	}
+
+	public List<List<String>> ordersOf(final String login, final int limit) throws SQLException {
+		List<List<List<String>>> perShard = scatter(shard -> shard.ordersOf(login, limit));
+
+		// every shard answered newest first, keep taking the newest head
+		List<List<String>> merged = new ArrayList<List<String>>();
+		int[] next = new int[perShard.size()];
+		while (limit <= 0 || merged.size() < limit) {
+			int newest = -1;
+			for (int i = 0; i < perShard.size(); i++) {
+				if (next[i] == perShard.get(i).size()) continue;
+				if (newest < 0 || newer(perShard.get(i).get(next[i]), perShard.get(newest).get(next[newest]))) newest = i;
+			}
+			if (newest < 0) break;
+			merged.add(perShard.get(newest).get(next[newest]++));
+		}//end while
+		return merged;
+	}//end ordersOf
+
+	public List<List<String>> orderLines(final int orderID, final String orderTimestamp) throws SQLException {
+		List<List<String>> lines = new ArrayList<List<String>>();
+		for (List<List<String>> shardLines : scatter(shard -> shard.orderLines(orderID, orderTimestamp))) {
+			lines.addAll(shardLines);
+		}
+		return lines;
+	}
+
+	public int updateOrderStatus(final int orderID, final String status) throws SQLException {
+		int changed = 0;
+		for (int shardChanged : scatter(shard -> shard.updateOrderStatus(orderID, status))) {
+			changed += shardChanged;
+		}
+		return changed;
+	}
+
+	public int updateOrderStatus(final int orderID, final int storeID, final String status) throws SQLException {
+		int shard = shardOf(storeID);
+		synchronized (shards.get(shard)) {
+			return charged(shard, deadline(), storage -> storage.updateOrderStatus(orderID, storeID, status));
+		}
+	}
+
+	/*
+	 * Scans every shard holding stores of the range, one after the other.  A
+	 * row is only passed on by the shard owning its store, orders of a store
+	 * left behind in another database are not counted twice.
+	 **/
+	public void scanHourlyDemand(int firstStore, int lastStore, long fromHour, long toHour, final DemandSink sink) throws SQLException {
+		for (final int shard : shardsOf(firstStore, lastStore)) {
+			shards.get(shard).scanHourlyDemand(firstStore, lastStore, fromHour, toHour, (storeID, itemName, hour, quantity) -> {
+				if (shardOf(storeID) == shard) sink.add(storeID, itemName, hour, quantity);
+			});
+		}
+	}//end scanHourlyDemand
+
+	/*
+	 * Returns the shards owning some store of firstStore..lastStore, the
+	 * home shard owns every store outside the mapped ranges
+	 **/
+	private List<Integer> shardsOf(int firstStore, int lastStore) {
+		TreeSet<Integer> result = new TreeSet<Integer>();
+		long next = firstStore;	// first store not known to be mapped
+		for (int i = 0; i < this.firstStore.length && next <= lastStore; i++) {
+			if (this.lastStore[i] < next) continue;
+			if (this.firstStore[i] > lastStore) break;
+			if (this.firstStore[i] > next) result.add(0);
+			result.add(owner[i]);
+			next = this.lastStore[i] + 1L;
+		}
+		if (next <= lastStore) result.add(0);
+		return new ArrayList<Integer>(result);
+	}//end shardsOf
+
+	private Storage home() {
+		return shards.get(0);
+	}
+
+	private PizzaStore databaseOf(Storage shard) {
+		return databases.get(shards.indexOf(shard));
+	}
+
+	// the deadline of the operation running on the home database
+	private Deadline deadline() {
+		return databases.get(0).getDeadline();
+	}
+
+	/*
+	 * Runs a call on a shard charged to a deadline, the caller holds the
+	 * shard.  The home database is already bounded by its own.
+	 **/
+	private <T> T charged(int shard, Deadline deadline, ShardCall<T> call) throws SQLException {
+		if (shard == 0) return call.run(home());
+		PizzaStore database = databases.get(shard);
+		database.setDeadline(deadline);
+		try {
+			return call.run(shards.get(shard));
+		} finally {
+			database.setDeadline(null);
+		}//end try
+	}//end charged
+
+	/*
+	 * Compares orderTimestamp, Postgres prints timestamps so that their text
+	 * order is their time order
+	 **/
+	private static boolean newer(List<String> order, List<String> other) {
+		return order.get(4).compareTo(other.get(4)) > 0;
+	}
+
+	/*
+	 * Runs a call on every shard at once and returns the results in shard
+	 * order.  The home shard runs on the calling thread, the others are
+	 * charged to the deadline of the current operation.
+	 **/
+	private <T> List<T> scatter(final ShardCall<T> call) throws SQLException {
+		final Deadline deadline = deadline();
+		List<Future<T>> remote = new ArrayList<Future<T>>();
+		for (int i = 1; i < shards.size(); i++) {
+			final int shard = i;
+			remote.add(workers.submit(() -> {
+				synchronized (shards.get(shard)) {
+					return charged(shard, deadline, call);
+				}
+			}));
+		}//end for
+
+		List<T> results = new ArrayList<T>();
+		SQLException failure = null;
+		try {
+			results.add(call.run(home()));
+		} catch (SQLException e) {
+			failure = e;
+		}//end try
+		for (Future<T> result : remote) {
+			try {
+				results.add(result.get());
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause().toString());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null) failure = new SQLException("Interrupted while waiting for the shards");
+			}//end try
+		}//end for
+		if (failure != null) throw failure;
+		return results;
+	}//end scatter
+
+	/*
+	 * Applies a reference data write to every shard and returns the result
+	 * of the home database, see the class comment
+	 **/
+	private <T> T replicate(ShardCall<T> call) throws SQLException {
+		List<String> diverged = new ArrayList<String>();
+		T result = replicate(call, 1, deadline(), diverged);
+		if (!diverged.isEmpty()) {
+			throw new SQLException("The change was applied to the home database but not to every shard: " + String.join("; ", diverged));
+		}
+		return result;
+	}
+
+	/*
+	 * Makes the write on shard and, holding it with its transaction open,
+	 * on the shards after it and then on the home database.  Once that
+	 * returned the write is committed here whatever happens, a commit that
+	 * fails is retried and a shard that still misses the write is added to
+	 * diverged.  The write is charged to deadline, the retries are not: once
+	 * the home database has the write the shards must get it too.  The
+	 * shards are always entered in the same order.
+	 **/
+	private <T> T replicate(ShardCall<T> call, int shard, Deadline deadline, List<String> diverged) throws SQLException {
+		if (shard == shards.size()) return call.run(home());
+		Storage storage = shards.get(shard);
+		PizzaStore database = databases.get(shard);
+		synchronized (storage) {
+			T result;
+			database.setAutoCommit(false);
+			try {
+				charged(shard, deadline, call);
+				result = replicate(call, shard + 1, deadline, diverged);
+			} catch (SQLException e) {
+				abandon(database);
+				throw e;
+			} catch (RuntimeException e) {
+				abandon(database);
+				throw e;
+			}//end try
+
+			SQLException failure = null;
+			try {
+				database.commit();
+				database.setAutoCommit(true);
+			} catch (SQLException e) {
+				abandon(database);
+				failure = e;
+			}//end try
+			for (int attempt = 1; failure != null && attempt <= retries; attempt++) {
+				try {
+					Thread.sleep(100L * attempt);
+					call.run(storage);
+					failure = null;
+				} catch (SQLException e) {
+					failure = e;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}//end try
+			}//end for
+			if (failure != null) diverged.add(String.format("shard %d: %s", shard, failure.getMessage()));
+			return result;
+		}//end synchronized
+	}//end replicate
+
+	private static void abandon(PizzaStore database) {
+		try {
+			database.rollback();
+			database.setAutoCommit(true);
+		} catch (SQLException e) {
+			// the connection is gone, so is its transaction.
+		}//end try
+	}
+
+}//end ShardedStorage
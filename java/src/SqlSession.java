@@ -0,0 +1,433 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class is one connection to the database and the execute methods
+ * running SQL on it.  Every statement is bounded by the deadline set on the
+ * session, see createStatement.  PizzaStore is the session of the user and
+ * owns the caches and queues of the process; the async worker threads each
+ * run their reads on a bare session of their own.
+ *
+ */
+public class SqlSession {
+
+	// reference to physical database connection.
+	private Connection _connection = null;
+
+	// connection parameters, kept to open the extra connections of the
+	// background listeners
+	private String _url = null;
+	private String _user = null;
+	private String _passwd = null;
+
+	// how far the installed statement_timeout may exceed the remaining
+	// budget before it is sent again (milliseconds)
+	private static final long TIMEOUT_SLACK = Math.max(0, Long.getLong("pizzastore.deadline.slack", 250));
+
+	// deadline of the logical operation in progress, null when none is active
+	private Deadline _deadline = null;
+
+	// statement_timeout installed on the session in ms, 0 for none and -1
+	// when unknown because a SET failed
+	private long _timeoutInstalled = 0;
+
+	/*
+	 * Creates a session without a connection, see connect
+	 **/
+	protected SqlSession() {
+	}
+
+	/*
+	 * Creates a session on a connection of its own to the database of
+	 * another session
+	 **/
+	public SqlSession(SqlSession parent) throws SQLException {
+		this._url = parent._url;
+		this._user = parent._user;
+		this._passwd = parent._passwd;
+		this._connection = parent.openConnection();
+	}//end SqlSession
+
+	/*
+	 * Opens the connection of this session
+	 **/
+	protected void connect(String url, String user, String passwd) throws SQLException {
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._connection = DriverManager.getConnection(url, user, passwd);
+	}//end connect
+
+	/**
+	 * Method to tell whether this instance is connected to a database
+	 *
+	 * @return false when running on an in-memory store
+	 */
+	public boolean hasConnection() {
+		return this._connection != null;
+	}
+
+	/**
+	 * Method to execute an update SQL statement.  Update SQL instructions
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 *
+	 * @param sql the input SQL string
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executeUpdate (String sql) throws SQLException {
+		// creates a statement object
+		Statement stmt = this.createStatement ();
+		Deadline deadline = this.statementStarted ();
+		try {
+			// issues the update instruction
+			return stmt.executeUpdate (sql);
+		}catch (SQLException e){
+			this.statementFailed (e);
+			throw e;
+		}finally{
+			// close the instruction
+			this.statementDone (deadline);
+			stmt.close ();
+		}//end try
+	}//end executeUpdate
+
+	/**
+	 * Method to execute several update SQL statements in a single round trip.
+	 * The statements are sent as one multi-statement query, which the server
+	 * runs as a single transaction: either all of them apply or none does.
+	 *
+	 * @param statements the update SQL strings, in execution order
+	 * @throws java.sql.SQLException when any of the statements failed
+	 */
+	public void executeBatch (List<String> statements) throws SQLException {
+		if (statements.isEmpty()) return;
+		StringBuilder sql = new StringBuilder();
+		for (String statement : statements) {
+			sql.append(statement).append(";\n");
+		}//end for
+		this.executeUpdate (sql.toString());
+	}//end executeBatch
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and outputs the results to
+	 * standard out.
+	 *
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query) throws SQLException {
+		// creates a statement object
+		Statement stmt = this.createStatement ();
+		Deadline deadline = this.statementStarted ();
+		try {
+			// issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+		/*
+		 ** obtains the metadata object for the returned result set.  The metadata
+		 ** contains row and column info.
+		 */
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			int rowCount = 0;
+
+			// iterates through the result set and output them to standard out.
+			boolean outputHeader = true;
+			while (rs.next()){
+				if(outputHeader){
+					for(int i = 1; i <= numCol; i++){
+						System.out.printf(rsmd.getColumnName(i) + "\t\t");
+					}
+					System.out.println();
+					outputHeader = false;
+				}
+				for (int i=1; i<=numCol; ++i)
+					System.out.printf(rs.getString (i) + "\t\t");
+				System.out.println ();
+				++rowCount;
+			}//end while
+			return rowCount;
+		}catch (SQLException e){
+			this.statementFailed (e);
+			throw e;
+		}finally{
+			this.statementDone (deadline);
+			stmt.close ();
+		}//end try
+	}//end executeQuery
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results as
+	 * a list of records. Each record in turn is a list of attribute values
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+		// creates a statement object
+		Statement stmt = this.createStatement ();
+		Deadline deadline = this.statementStarted ();
+		try {
+			// issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+			/*
+			 ** obtains the metadata object for the returned result set.  The metadata
+			 ** contains row and column info.
+			 */
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			int rowCount = 0;
+
+			// iterates through the result set and saves the data returned by the query.
+			boolean outputHeader = false;
+			List<List<String>> result  = new ArrayList<List<String>>();
+			while (rs.next()){
+				List<String> record = new ArrayList<String>();
+				for (int i=1; i<=numCol; ++i)
+					record.add(rs.getString (i));
+				result.add(record);
+			}//end while
+			return result;
+		}catch (SQLException e){
+			this.statementFailed (e);
+			throw e;
+		}finally{
+			this.statementDone (deadline);
+			stmt.close ();
+		}//end try
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the number of results
+	 *
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query) throws SQLException {
+		// creates a statement object
+		Statement stmt = this.createStatement ();
+		Deadline deadline = this.statementStarted ();
+		try {
+			// issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+			int rowCount = 0;
+
+			// iterates through the result set and count nuber of results.
+			while (rs.next()){
+				rowCount++;
+			}//end while
+			return rowCount;
+		}catch (SQLException e){
+			this.statementFailed (e);
+			throw e;
+		}finally{
+			this.statementDone (deadline);
+			stmt.close ();
+		}//end try
+	}
+
+	/**
+	 * Method to fetch the last value from sequence. This
+	 * method issues the query to the DBMS and returns the current
+	 * value of sequence used for autogenerated keys
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return current value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int getCurrSeqVal(String sequence) throws SQLException {
+		Statement stmt = this.createStatement ();
+		Deadline deadline = this.statementStarted ();
+		try {
+			ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+			if (rs.next())
+				return rs.getInt(1);
+			return -1;
+		}catch (SQLException e){
+			this.statementFailed (e);
+			throw e;
+		}finally{
+			this.statementDone (deadline);
+			stmt.close ();
+		}//end try
+	}
+
+	/**
+	 * Method to switch the connection between auto-commit and explicit
+	 * transactions
+	 *
+	 * @param autoCommit true to commit every statement on its own
+	 * @throws java.sql.SQLException when the mode could not be changed
+	 */
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		this._connection.setAutoCommit (autoCommit);
+	}
+
+	/**
+	 * Method to commit the open transaction
+	 *
+	 * @throws java.sql.SQLException when the commit failed
+	 */
+	public void commit() throws SQLException {
+		this._connection.commit ();
+	}
+
+	/**
+	 * Method to roll back the open transaction
+	 *
+	 * @throws java.sql.SQLException when the rollback failed
+	 */
+	public void rollback() throws SQLException {
+		this._connection.rollback ();
+	}
+
+	/**
+	 * Method to roll the open transaction back to a savepoint.  This runs
+	 * outside the deadline of the current operation, the transaction is in
+	 * an aborted state and would refuse the statement timeout.
+	 *
+	 * @param savepoint name of the savepoint
+	 * @throws java.sql.SQLException when the rollback failed
+	 */
+	public void rollbackToSavepoint(String savepoint) throws SQLException {
+		Statement stmt = this._connection.createStatement ();
+		try {
+			stmt.executeUpdate ("ROLLBACK TO SAVEPOINT " + savepoint);
+		}finally{
+			stmt.close ();
+		}//end try
+	}//end rollbackToSavepoint
+
+	/*
+	 * Returns the deadline the statements of this session are charged to,
+	 * null when none is set
+	 **/
+	protected Deadline getDeadline() {
+		return this._deadline;
+	}
+
+	/*
+	 * Bounds the following statements by a deadline, null for none.  A
+	 * Deadline is thread safe, the sessions of several threads may share one.
+	 **/
+	protected void setDeadline(Deadline deadline) {
+		this._deadline = deadline;
+	}
+
+	/*
+	 * Sets statement_timeout back to none once an operation ended
+	 **/
+	protected void clearStatementTimeout() {
+		if (this._timeoutInstalled == 0) return;
+		try {
+			Statement stmt = this._connection.createStatement ();
+			try {
+				this.installStatementTimeout (stmt, 0);
+			}finally{
+				stmt.close ();
+			}//end try
+		}catch (SQLException e){
+			// the next statement sets the timeout again before it runs
+			System.err.println("Unable to clear the statement timeout: " + e.getMessage());
+		}//end try
+	}//end clearStatementTimeout
+
+	/*
+	 * Creates a statement bounded by the deadline of the current operation.
+	 * The remaining budget is installed as the server side statement_timeout,
+	 * so a statement that overruns is cancelled by Postgres itself instead of
+	 * holding the session.  setQueryTimeout is set as well for drivers that
+	 * enforce it on the client.
+	 *
+	 * Installing the timeout costs a round trip, so the one already on the
+	 * session is kept while it exceeds the remaining budget by no more than
+	 * -Dpizzastore.deadline.slack=<ms> (default 250), the most a statement
+	 * may overrun its operation.
+	 **/
+	private Statement createStatement() throws SQLException {
+		if (this._connection == null) {
+			throw new SQLException("This operation needs a database connection, it is not available on the in-memory store");
+		}//end if
+		Statement stmt = this._connection.createStatement ();
+		Deadline deadline = this._deadline;
+		try {
+			if (deadline == null) {
+				// a timeout left by a failed clear must not outlive its operation
+				if (this._timeoutInstalled != 0) this.installStatementTimeout (stmt, 0);
+				return stmt;
+			}//end if
+			long remaining = deadline.checkRemaining();
+			stmt.setQueryTimeout ((int) ((remaining + 999) / 1000));
+			long installed = this._timeoutInstalled;
+			if (installed <= 0 || installed < remaining || installed - remaining > TIMEOUT_SLACK) {
+				this.installStatementTimeout (stmt, remaining);
+			}//end if
+			return stmt;
+		}catch (SQLException e){
+			stmt.close ();
+			throw e;
+		}//end try
+	}//end createStatement
+
+	private void installStatementTimeout(Statement stmt, long millis) throws SQLException {
+		this._timeoutInstalled = -1;
+		stmt.executeUpdate (String.format("SET statement_timeout = %d", millis));
+		this._timeoutInstalled = millis;
+	}
+
+	private void statementFailed(SQLException e) {
+		Deadline deadline = this._deadline;
+		if (deadline != null) deadline.markOutcome(deadline.classify(e));
+	}
+
+	// the deadline the statement about to run is charged to, null for none
+	private Deadline statementStarted() {
+		Deadline deadline = this._deadline;
+		if (deadline != null) deadline.statementStarted();
+		return deadline;
+	}
+
+	private void statementDone(Deadline deadline) {
+		if (deadline != null) deadline.statementFinished();
+	}
+
+	/**
+	 * Method to open another physical connection to the same database, used
+	 * by background threads that must not share the session connection.
+	 *
+	 * @return a new connection
+	 * @throws java.sql.SQLException when failed to make a connection.
+	 */
+	public Connection openConnection() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	/**
+	 * Method to close the physical connection if it is open.
+	 */
+	public void close() {
+		try{
+			if (this._connection != null){
+				this._connection.close ();
+			}//end if
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}//end close
+
+}//end SqlSession
@@ -0,0 +1,140 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This interface defines every read and write the menu operations make, so
+ * they can run against Postgres (JdbcStorage) or entirely in memory
+ * (MemoryStorage).
+ *
+ * Rows are returned the way executeQueryAndReturnResult returns them, one
+ * string per column in table order:
+ *   user  - login, password, role, favoriteItems, phoneNum
+ *   item  - itemName, ingredients, typeOfItem, price, description
+ *   store - storeID, address, city, state, isOpen, reviewScore
+ *   order - orderID, login, storeID, totalPrice, orderTimestamp, orderStatus
+ *   line  - itemName, quantity
+ * Failures, including broken constraints, are reported as SQLException.
+ *
+ */
+public interface Storage {
+
+	// sort orders of findItems
+	public static final int UNSORTED = 0;
+	public static final int PRICE_DESC = 1;
+	public static final int PRICE_ASC = 2;
+
+	/**
+	 * Receives the rows of scanHourlyDemand
+	 */
+	public interface DemandSink {
+		void add(int storeID, String itemName, long hour, long quantity);
+	}
+
+	/*
+	 * Users
+	 **/
+	public List<String> findUser(String login) throws SQLException;
+
+	/*
+	 * Returns the stored password of a user, null if there is no such user
+	 **/
+	public String findPassword(String login) throws SQLException;
+
+	/*
+	 * Returns login and password of every user whose password is not hashed
+	 * yet, see Authenticator
+	 **/
+	public List<List<String>> plainPasswords() throws SQLException;
+
+	public void createUser(String login, String password, String role, String phoneNum) throws SQLException;
+
+	/*
+	 * Sets one column (favoriteItems, phoneNum, password, login or role) of a user
+	 * @return the number of users changed
+	 **/
+	public int updateUser(String login, String attribute, String value) throws SQLException;
+
+	/*
+	 * Items
+	 **/
+	public List<String> findItem(String itemName) throws SQLException;
+
+	/*
+	 * Returns the items of a type (null for every type) that cost at most
+	 * maxPrice (null for any price)
+	 **/
+	public List<List<String>> findItems(String typeOfItem, String maxPrice, int sort) throws SQLException;
+
+	public void insertItem(String itemName, String ingredients, String typeOfItem, String price, String description) throws SQLException;
+
+	/*
+	 * Sets one column (ingredients, typeOfItem, price or description) of an item
+	 * @return the number of items changed
+	 **/
+	public int updateItem(String itemName, String attribute, String value) throws SQLException;
+
+	/*
+	 * Removes an item together with its lines in past orders
+	 * @return the number of items removed
+	 **/
+	public int deleteItem(String itemName) throws SQLException;
+
+	/*
+	 * Returns the promotion rules as (kind, storeID, target, amount, startHour, endHour)
+	 **/
+	public List<List<String>> promotions() throws SQLException;
+
+	/*
+	 * Stores
+	 **/
+	public List<List<String>> openStores() throws SQLException;
+
+	/*
+	 * Returns the storeID of every store, open or not
+	 **/
+	public List<Integer> storeIDs() throws SQLException;
+
+	/*
+	 * Orders
+	 **/
+	public int nextOrderId() throws SQLException;
+
+	/*
+	 * Writes an order and its lines at the current time, all or nothing
+	 * @return the order row as written
+	 **/
+	public List<String> insertOrder(int orderID, String login, int storeID, String totalPrice, List<String> itemNames, List<Integer> quantities) throws SQLException;
+
+	public List<String> findOrder(int orderID) throws SQLException;
+
+	/*
+	 * Returns the orders of a user, newest first, at most limit of them (0 for all)
+	 **/
+	public List<List<String>> ordersOf(String login, int limit) throws SQLException;
+
+	/*
+	 * Returns the lines of an order, orderTimestamp may be null if unknown
+	 **/
+	public List<List<String>> orderLines(int orderID, String orderTimestamp) throws SQLException;
+
+	/*
+	 * @return the number of orders changed
+	 **/
+	public int updateOrderStatus(int orderID, String status) throws SQLException;
+
+	/*
+	 * Same as updateOrderStatus for an order of a known store, only changed
+	 * if it belongs to that store
+	 * @return the number of orders changed
+	 **/
+	public int updateOrderStatus(int orderID, int storeID, String status) throws SQLException;
+
+	/*
+	 * Streams the quantity ordered per store, item and hour for the stores
+	 * firstStore..lastStore in the hours [fromHour, toHour), see
+	 * DemandForecaster.hourOf.  The rows of one store and item come in hour
+	 * order and the whole history is never held at once.
+	 **/
+	public void scanHourlyDemand(int firstStore, int lastStore, long fromHour, long toHour, DemandSink sink) throws SQLException;
+
+}//end Storage
@@ -3,6 +3,8 @@ DROP INDEX IF EXISTS user_role_index;
 DROP INDEX IF EXISTS item_type_index; 
 DROP INDEX IF EXISTS item_price_index; 
 DROP INDEX IF EXISTS item_name_index; 
+DROP INDEX IF EXISTS order_login_time_index; 
+DROP INDEX IF EXISTS order_store_time_index; 
 
 CREATE INDEX user_login_index
 ON Users
@@ -28,3 +30,15 @@ CREATE INDEX item_price_index
 ON Items 
 USING BTREE
 (price);
+
+/* partitioned index, one small index per monthly partition */
+CREATE INDEX order_login_time_index
+ON FoodOrder
+USING BTREE
+(login, orderTimestamp);
+
+/* store ranges of the demand forecast, see DemandForecaster */
+CREATE INDEX order_store_time_index
+ON FoodOrder
+USING BTREE
+(storeID, orderTimestamp);
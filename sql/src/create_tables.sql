@@ -3,13 +3,15 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS Promotion CASCADE;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
-                     password varchar(30) NOT NULL,
+                     password varchar(128) NOT NULL, --pbkdf2$<iterations>$<salt>$<hash>, see Authenticator
                      role char(20) NOT NULL,
                      favoriteItems text,
                      phoneNum varchar(20) NOT NULL,
-                     PRIMARY KEY(login)
+                     PRIMARY KEY(login),
+                     CONSTRAINT users_password_hashed CHECK (password LIKE 'pbkdf2$%')
 );
 
 CREATE TABLE Items ( itemName varchar(50) NOT NULL,
@@ -29,27 +31,83 @@ CREATE TABLE Store ( storeID integer NOT NULL,
                            PRIMARY KEY(storeID)
 );
 
+/* FoodOrder and ItemsInOrder are range partitioned by month on
+   orderTimestamp.  ItemsInOrder carries the timestamp of its order so the
+   line items of a month live in the partition matching their orders, and
+   old months can be archived and detached together (see OrderArchiver). */
 CREATE TABLE FoodOrder ( orderID SERIAL NOT NULL,
                            login varchar(50) NOT NULL, --places relationship
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
                            orderStatus char(50),
-                           PRIMARY KEY(orderID),
+                           PRIMARY KEY(orderID, orderTimestamp),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
                            ON DELETE CASCADE
-);
+) PARTITION BY RANGE (orderTimestamp);
 
 
 
-CREATE TABLE ItemsInOrder ( orderID SERIAL NOT NULL ,
+CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
+                           orderTimestamp timestamp NOT NULL, --copy of FoodOrder.orderTimestamp
                            itemName varchar(50) NOT NULL,
                            quantity integer NOT NULL,
-                           PRIMARY KEY(orderID, itemName),
-                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE,
+                           PRIMARY KEY(orderID, orderTimestamp, itemName),
+                           FOREIGN KEY(orderID, orderTimestamp) REFERENCES FoodOrder(orderID, orderTimestamp) ON DELETE CASCADE,
                            FOREIGN KEY(itemName) REFERENCES Items(itemName)
                            ON DELETE CASCADE
-);
+) PARTITION BY RANGE (orderTimestamp);
+
+/* Creates the monthly partitions of FoodOrder and ItemsInOrder for every
+   month in [fromMonth, toMonth) that does not have one yet.  Orders placed
+   before their month had a partition sit in the default partitions, they
+   are moved into the new partitions before these are attached. */
+CREATE OR REPLACE FUNCTION create_order_partitions(fromMonth date, toMonth date) RETURNS integer AS $$
+DECLARE
+    month date := date_trunc('month', fromMonth);
+    nextMonth date;
+    suffix text;
+    created integer := 0;
+BEGIN
+    WHILE month < toMonth LOOP
+        suffix := to_char(month, '"y"YYYY"m"MM');
+        nextMonth := (month + interval '1 month')::date;
+        IF to_regclass('foodorder_' || suffix) IS NULL THEN
+            EXECUTE format('CREATE TABLE %I (LIKE FoodOrder INCLUDING DEFAULTS)', 'foodorder_' || suffix);
+            EXECUTE format('CREATE TABLE %I (LIKE ItemsInOrder INCLUDING DEFAULTS)', 'itemsinorder_' || suffix);
+            --line items first, deleting their orders would cascade to them
+            EXECUTE format('WITH moved AS (DELETE FROM ItemsInOrder_default WHERE orderTimestamp >= %L AND orderTimestamp < %L RETURNING *) ' ||
+                           'INSERT INTO %I SELECT * FROM moved', month, nextMonth, 'itemsinorder_' || suffix);
+            EXECUTE format('WITH moved AS (DELETE FROM FoodOrder_default WHERE orderTimestamp >= %L AND orderTimestamp < %L RETURNING *) ' ||
+                           'INSERT INTO %I SELECT * FROM moved', month, nextMonth, 'foodorder_' || suffix);
+            EXECUTE format('ALTER TABLE FoodOrder ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                           'foodorder_' || suffix, month, nextMonth);
+            EXECUTE format('ALTER TABLE ItemsInOrder ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                           'itemsinorder_' || suffix, month, nextMonth);
+            created := created + 1;
+        END IF;
+        month := nextMonth;
+    END LOOP;
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+--orders outside every monthly partition
+CREATE TABLE FoodOrder_default PARTITION OF FoodOrder DEFAULT;
+CREATE TABLE ItemsInOrder_default PARTITION OF ItemsInOrder DEFAULT;
 
+SELECT create_order_partitions('2014-01-01', (date_trunc('month', now()) + interval '3 months')::date);
+
+CREATE TABLE Promotion ( promoID integer NOT NULL,
+                           kind varchar(20) NOT NULL, --store, combo, bogo, percent, happyhour
+                           storeID integer, --NULL applies at every store
+                           target varchar(300) NOT NULL, --itemName, typeOfItem or 'A|B|C' for combos
+                           amount integer NOT NULL, --cents for store and combo, percent otherwise
+                           startHour integer NOT NULL,
+                           endHour integer NOT NULL,
+                           PRIMARY KEY(promoID),
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                           ON DELETE CASCADE
+);
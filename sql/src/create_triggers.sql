@@ -0,0 +1,84 @@
+DROP TABLE IF EXISTS ChangeEvent CASCADE;
+
+CREATE TABLE ChangeEvent ( seq BIGSERIAL NOT NULL,
+                           tableName varchar(20) NOT NULL,
+                           op char(1) NOT NULL, --I, U or D
+                           rowKey varchar(50) NOT NULL, --login, itemName, storeID or orderID
+                           rowValue varchar(50), --new orderStatus of FoodOrder, NULL otherwise
+                           changedAt timestamp NOT NULL DEFAULT now(),
+                           PRIMARY KEY(seq)
+);
+
+/* Appends one ChangeEvent per changed key and wakes up the listeners, the
+   notification is delivered when the transaction commits.
+   TG_ARGV[0] is the name of the key column of the table, the optional
+   TG_ARGV[1] the name of a column whose new value is published too and the
+   optional TG_ARGV[2] the table name to publish, for partitioned tables. */
+CREATE OR REPLACE FUNCTION publish_change() RETURNS trigger AS $$
+DECLARE
+    oldKey varchar(50);
+    newKey varchar(50);
+    newValue varchar(50);
+    eventTable varchar(20) := TG_TABLE_NAME;
+BEGIN
+    IF TG_NARGS > 2 THEN
+        eventTable := TG_ARGV[2];
+    END IF;
+    IF TG_OP <> 'INSERT' THEN
+        oldKey := to_jsonb(OLD) ->> TG_ARGV[0];
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        newKey := to_jsonb(NEW) ->> TG_ARGV[0];
+        IF TG_NARGS > 1 THEN
+            newValue := trim(to_jsonb(NEW) ->> TG_ARGV[1]);
+        END IF;
+    END IF;
+
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO ChangeEvent (tableName, op, rowKey, rowValue) VALUES (eventTable, 'I', newKey, newValue);
+    ELSIF TG_OP = 'DELETE' THEN
+        INSERT INTO ChangeEvent (tableName, op, rowKey) VALUES (eventTable, 'D', oldKey);
+    ELSIF oldKey <> newKey THEN
+        --a renamed key is a delete of the old key and an insert of the new one
+        INSERT INTO ChangeEvent (tableName, op, rowKey) VALUES (eventTable, 'D', oldKey);
+        INSERT INTO ChangeEvent (tableName, op, rowKey, rowValue) VALUES (eventTable, 'I', newKey, newValue);
+    ELSE
+        INSERT INTO ChangeEvent (tableName, op, rowKey, rowValue) VALUES (eventTable, 'U', newKey, newValue);
+    END IF;
+
+    NOTIFY pizzastore_changes;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP FUNCTION IF EXISTS wait_for_changes(bigint, bigint[], integer);
+
+DROP TRIGGER IF EXISTS items_change ON Items;
+DROP TRIGGER IF EXISTS users_change ON Users;
+DROP TRIGGER IF EXISTS store_change ON Store;
+DROP TRIGGER IF EXISTS foodorder_status_change ON FoodOrder;
+DROP TRIGGER IF EXISTS foodorder_insert ON FoodOrder;
+
+CREATE TRIGGER items_change
+AFTER INSERT OR UPDATE OR DELETE ON Items
+FOR EACH ROW EXECUTE PROCEDURE publish_change('itemname');
+
+CREATE TRIGGER users_change
+AFTER INSERT OR UPDATE OR DELETE ON Users
+FOR EACH ROW EXECUTE PROCEDURE publish_change('login');
+
+CREATE TRIGGER store_change
+AFTER INSERT OR UPDATE OR DELETE ON Store
+FOR EACH ROW EXECUTE PROCEDURE publish_change('storeid');
+
+--status changes only, not every update; the triggers fire on the monthly
+--partitions, the events are published as FoodOrder
+CREATE TRIGGER foodorder_status_change
+AFTER UPDATE OF orderStatus ON FoodOrder
+FOR EACH ROW WHEN (OLD.orderStatus IS DISTINCT FROM NEW.orderStatus)
+EXECUTE PROCEDURE publish_change('orderid', 'orderstatus', 'foodorder');
+
+--new orders, so the dispatch queues of every instance see them
+CREATE TRIGGER foodorder_insert
+AFTER INSERT ON FoodOrder
+FOR EACH ROW EXECUTE PROCEDURE publish_change('orderid', 'orderstatus', 'foodorder');
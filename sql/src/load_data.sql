@@ -1,4 +1,5 @@
 /* Replace the location to where you saved the data files*/
+/* users.csv holds password hashes, see Authenticator */
 COPY Users
 FROM '/home/csmajs/squia003/cs166_project_phase3/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
@@ -15,6 +16,23 @@ COPY FoodOrder
 FROM '/home/csmajs/squia003/cs166_project_phase3/data/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY ItemsInOrder
+/* itemsinorder.csv has no orderTimestamp, it is taken from the order */
+CREATE TEMP TABLE ItemsInOrderLoad ( orderID integer NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           quantity integer NOT NULL
+);
+
+COPY ItemsInOrderLoad
 FROM '/home/csmajs/squia003/cs166_project_phase3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+INSERT INTO ItemsInOrder (orderID, orderTimestamp, itemName, quantity)
+SELECT l.orderID, f.orderTimestamp, l.itemName, l.quantity
+FROM ItemsInOrderLoad l JOIN FoodOrder f ON f.orderID = l.orderID;
+
+COPY Promotion
+FROM '/home/csmajs/squia003/cs166_project_phase3/data/promotions.csv'
+WITH DELIMITER ',' CSV HEADER;
+
+/* Move the orderID sequence past the loaded orders */
+SELECT setval('foodorder_orderid_seq', (SELECT MAX(orderID) FROM FoodOrder));